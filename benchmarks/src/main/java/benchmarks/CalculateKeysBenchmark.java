@@ -0,0 +1,42 @@
+package benchmarks;
+
+import broker.Broker;
+import org.openjdk.jmh.annotations.*;
+import shared.ArtistName;
+import shared.NodeInfo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CalculateKeysBenchmark {
+
+    @Param({"1000", "100000"})
+    public int artists;
+
+    private Broker broker;
+    private List<ArtistName> artistNames;
+
+    @Setup
+    public void setUp() {
+        broker = new Broker(0);
+        artistNames = new ArrayList<>(artists);
+        for (int i = 0; i < artists; i++) {
+            ArtistName artistName = new ArtistName();
+            artistName.setArtistName("Artist " + i);
+            artistNames.add(artistName);
+        }
+    }
+
+    @Benchmark
+    public Map<NodeInfo, List<ArtistName>> calculateKeys() {
+        return broker.calculateKeys(artistNames);
+    }
+}
@@ -0,0 +1,59 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import shared.MP3Chunk;
+import shared.SongInfo;
+import util.MusicTools;
+import util.SyntheticLibrary;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of serving one chunk: splitting the whole file and picking a part against a ranged read of that part.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChunkReadBenchmark {
+
+    @Param({"5000000", "50000000"})
+    public int fileSize;
+
+    @Param({"131072", "524288", "2097152"})
+    public int chunkSize;
+
+    private Path directory;
+    private SongInfo song;
+    private int lastPart;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("chunk-read");
+        Path file = directory.resolve("song.mp3");
+        SyntheticLibrary.writeSong(file, "Song", "Artist", "Album", "Synthetic", fileSize);
+        song = new SongInfo("Song", "Artist", "Album", "Synthetic", file.toString(), Files.size(file), chunkSize);
+        lastPart = song.getPartsTotal() - 1;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(directory.resolve("song.mp3"));
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    public MP3Chunk splitSongToChunks() {
+        return MusicTools.splitSongToChunks(song).get(lastPart / 2);
+    }
+
+    @Benchmark
+    public MP3Chunk readChunk() {
+        return MusicTools.readChunk(song, lastPart / 2);
+    }
+}
@@ -0,0 +1,288 @@
+package benchmarks;
+
+import broker.Broker;
+import consumer.ChunkDownloader;
+import consumer.Consumer;
+import publisher.Publisher;
+import shared.NodeInfo;
+import shared.RoutingTable;
+import shared.SongInfo;
+import util.LatencyHistogram;
+import util.ServerMode;
+import util.SyntheticLibrary;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Boots a whole cluster inside one JVM on ephemeral localhost ports, serves it a synthetic library and
+ * lets a number of simulated consumers download songs picked from a Zipf popularity distribution.
+ * Prints throughput and time-to-first-chunk / full-song latency percentiles at the end.
+ * <p>
+ * {@code java -cp benchmarks/target/benchmarks.jar [-Dharness.<option>=...] benchmarks.ClusterHarness},
+ * see {@link #main} for the options.
+ */
+public class ClusterHarness {
+
+    private final int brokerCount = Integer.getInteger("harness.brokers", 3);
+    private final int publisherCount = Integer.getInteger("harness.publishers", 2);
+    private final int consumerCount = Integer.getInteger("harness.consumers", 8);
+    private final int downloads = Integer.getInteger("harness.downloads", 400);
+    private final int warmupDownloads = Integer.getInteger("harness.warmup", 0);
+    private final int artists = Integer.getInteger("harness.artists", 50);
+    private final int songsPerArtist = Integer.getInteger("harness.songs", 4);
+    private final int fileSize = Integer.getInteger("harness.file.size", 2 * 1024 * 1024);
+    private final double zipfExponent = Double.parseDouble(System.getProperty("harness.zipf", "1.0"));
+    private final long seed = Long.getLong("harness.seed", 42);
+    private final ServerMode serverMode = ServerMode.fromString(System.getProperty("harness.mode", "pooled"));
+    private final int poolSize = Integer.getInteger("harness.pool", 16);
+    private final String library = System.getProperty("harness.library");
+
+    private final List<Broker> brokers = new ArrayList<>();
+
+    private final LatencyHistogram firstChunkLatency = new LatencyHistogram();
+    private final LatencyHistogram songLatency = new LatencyHistogram();
+    private final LatencyHistogram artistLatency = new LatencyHistogram();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicInteger failures = new AtomicInteger();
+
+    /**
+     * Options, all as system properties: harness.brokers (3), harness.publishers (2), harness.consumers (8),
+     * harness.downloads in total (400), harness.warmup downloads not measured (0), harness.artists (50),
+     * harness.songs per artist (4), harness.file.size in bytes (2 MB), harness.zipf exponent (1.0, 0 is uniform),
+     * harness.seed (42), harness.mode serial|pooled|threads (pooled), harness.pool (16) and harness.library,
+     * a directory to generate the library into and keep, instead of a temporary one. The transport is picked
+     * with -Dserver.transport=blocking|eventloop as for the nodes themselves.
+     */
+    public static void main(String[] args) throws Exception {
+        new ClusterHarness().run();
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        Path workDirectory = library != null ? Paths.get(library) : Files.createTempDirectory("cluster-harness");
+        Path libraryPath = workDirectory.resolve("data");
+        try {
+            if (!Files.isDirectory(libraryPath)) {
+                System.out.println("Generating " + artists * songsPerArtist + " songs of " + fileSize + " bytes in " + libraryPath);
+                SyntheticLibrary.generate(libraryPath, artists, songsPerArtist, fileSize);
+            }
+            startCluster(workDirectory, libraryPath);
+
+            List<Song> songs = rankSongs();
+            if (warmupDownloads > 0) {
+                System.out.println("Warming up with " + warmupDownloads + " downloads");
+                drive(songs, warmupDownloads, seed + 1);
+                reset();
+            }
+            System.out.println("Running " + downloads + " downloads with " + consumerCount + " consumers");
+            long elapsed = drive(songs, downloads, seed);
+            report(elapsed);
+        } finally {
+            if (library == null) delete(workDirectory);
+        }
+    }
+
+    // binds every server socket first so that each node can be told the whole topology before it starts
+    private void startCluster(Path workDirectory, Path libraryPath) throws IOException {
+        List<ServerSocket> brokerSockets = bind(brokerCount);
+        List<ServerSocket> publisherSockets = bind(publisherCount);
+        List<NodeInfo> brokerNodes = toNodes(brokerSockets);
+        List<NodeInfo> publisherNodes = toNodes(publisherSockets);
+        System.out.println("Brokers " + brokerNodes + ", publishers " + publisherNodes);
+
+        for (int i = 0; i < brokerCount; i++) {
+            Broker broker = new Broker(i, brokerNodes);
+            broker.setServerMode(serverMode, poolSize);
+            brokers.add(broker);
+            ServerSocket socket = brokerSockets.get(i);
+            startDaemon("broker-" + i, () -> broker.startServer(socket));
+        }
+        for (int i = 0; i < publisherCount; i++) {
+            Publisher publisher = new Publisher(i, publisherNodes, brokerNodes.get(0));
+            publisher.setServerMode(serverMode, poolSize);
+            publisher.setLibrary(libraryPath, workDirectory.resolve("catalog-" + i + ".manifest"));
+            publisher.init();
+            ServerSocket socket = publisherSockets.get(i);
+            startDaemon("publisher-" + i, () -> publisher.startServer(socket));
+            publisher.connectToBroker();
+        }
+    }
+
+    private long drive(List<Song> songs, int count, long runSeed) throws Exception {
+        ZipfDistribution popularity = new ZipfDistribution(songs.size(), zipfExponent);
+        AtomicInteger remaining = new AtomicInteger(count);
+        ExecutorService consumers = Executors.newFixedThreadPool(consumerCount);
+        long start = System.nanoTime();
+        for (int i = 0; i < consumerCount; i++) {
+            Random random = new Random(runSeed * 31 + i);
+            consumers.execute(() -> {
+                Consumer consumer = new Consumer(toNode(brokers.get(0)));
+                consumer.registerToBroker();
+                while (remaining.getAndDecrement() > 0) {
+                    listen(consumer, songs.get(popularity.sample(random)));
+                }
+            });
+        }
+        consumers.shutdown();
+        consumers.awaitTermination(1, TimeUnit.DAYS);
+        return System.nanoTime() - start;
+    }
+
+    // what one listener does: find the artist's broker, look the song up, download it
+    private void listen(Consumer consumer, Song song) {
+        RoutingTable.Route route = consumer.findCorrectBrokerByArtistName(song.artist);
+        if (route == null) {
+            failures.incrementAndGet();
+            return;
+        }
+        long lookupStart = System.nanoTime();
+        List<SongInfo> songInfos = consumer.requestArtist(route.getNode(), route.getArtistName());
+        artistLatency.record(System.nanoTime() - lookupStart);
+        if (songInfos == null) {
+            failures.incrementAndGet();
+            return;
+        }
+
+        SongInfo songInfo = null;
+        for (SongInfo candidate : songInfos) {
+            if (song.title.equals(candidate.getSongTitle())) songInfo = candidate;
+        }
+        if (songInfo == null) {
+            failures.incrementAndGet();
+            return;
+        }
+        try {
+            ChunkDownloader.Stats stats = consumer.download(route.getNode(), songInfo, chunk -> { });
+            firstChunkLatency.record(stats.getTimeToFirstChunkNanos());
+            songLatency.record(stats.getTotalNanos());
+            bytes.addAndGet(stats.getBytes());
+        } catch (IOException e) {
+            failures.incrementAndGet();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // popularity ranks are shuffled so the hot songs are spread over artists, brokers and publishers
+    private List<Song> rankSongs() {
+        List<Song> songs = new ArrayList<>();
+        for (int artist = 0; artist < artists; artist++) {
+            for (int song = 0; song < songsPerArtist; song++) {
+                songs.add(new Song("Artist " + artist, "Song " + artist + "-" + song));
+            }
+        }
+        Collections.shuffle(songs, new Random(seed));
+        return songs;
+    }
+
+    private void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        long songs = songLatency.getCount();
+        System.out.println();
+        System.out.printf("%d songs, %d failed, in %.2f s : %.1f songs/s, %.2f MB/s%n",
+                songs, failures.get(), seconds, songs / seconds, bytes.get() / seconds / (1024 * 1024));
+        printLatency("artist lookup", artistLatency);
+        printLatency("first chunk", firstChunkLatency);
+        printLatency("full song", songLatency);
+        for (Broker broker : brokers) {
+            System.out.println(broker + " cache " + broker.getChunkCache() + ", "
+                    + broker.getMetrics().counter("multicast.subscribers").sum() + " streams served from "
+                    + broker.getMetrics().counter("multicast.upstreams").sum() + " publisher streams, chunks "
+                    + broker.getChunkFetches() + ", artists " + broker.getArtistLookups());
+        }
+    }
+
+    private static void printLatency(String name, LatencyHistogram histogram) {
+        System.out.printf("%-14s p50 %8.2f ms  p99 %8.2f ms  p999 %8.2f ms  max %8.2f ms%n", name,
+                histogram.getPercentile(50) / 1e6, histogram.getPercentile(99) / 1e6,
+                histogram.getPercentile(99.9) / 1e6, histogram.getMax() / 1e6);
+    }
+
+    private void reset() {
+        for (LatencyHistogram histogram : Arrays.asList(firstChunkLatency, songLatency, artistLatency)) {
+            histogram.reset();
+        }
+        bytes.set(0);
+        failures.set(0);
+    }
+
+    private static List<ServerSocket> bind(int count) throws IOException {
+        List<ServerSocket> sockets = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            // opened through a channel so that either transport can serve it
+            sockets.add(ServerSocketChannel.open().bind(new InetSocketAddress(0), 1024).socket());
+        }
+        return sockets;
+    }
+
+    private static List<NodeInfo> toNodes(List<ServerSocket> sockets) {
+        List<NodeInfo> nodes = new ArrayList<>();
+        for (ServerSocket socket : sockets) {
+            nodes.add(new NodeInfo("localhost", socket.getLocalPort(), nodes.size()));
+        }
+        return nodes;
+    }
+
+    private static NodeInfo toNode(Broker broker) {
+        return broker.getBrokers().get(0);
+    }
+
+    private static void startDaemon(String name, Runnable runnable) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private static class Song {
+        private final String artist;
+        private final String title;
+
+        Song(String artist, String title) {
+            this.artist = artist;
+            this.title = title;
+        }
+    }
+
+    /**
+     * Rank k of n is drawn with probability proportional to 1 / k^exponent.
+     */
+    static class ZipfDistribution {
+        private final double[] cumulative;
+
+        ZipfDistribution(int n, double exponent) {
+            cumulative = new double[n];
+            double sum = 0;
+            for (int k = 1; k <= n; k++) {
+                sum += 1 / Math.pow(k, exponent);
+                cumulative[k - 1] = sum;
+            }
+            for (int i = 0; i < n; i++) {
+                cumulative[i] /= sum;
+            }
+        }
+
+        int sample(Random random) {
+            int index = Arrays.binarySearch(cumulative, random.nextDouble());
+            return Math.min(index >= 0 ? index : -index - 1, cumulative.length - 1);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import shared.ArtistName;
+import shared.SongInfo;
+import util.MusicTools;
+import util.SyntheticLibrary;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Library scan over a synthetic library, from scratch (cold) and with an up to date manifest (warm).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LoadSongsBenchmark {
+
+    @Param({"100", "1000"})
+    public int files;
+
+    private Path directory;
+    private Path library;
+    private Path manifest;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("load-songs");
+        library = directory.resolve("data");
+        manifest = directory.resolve("catalog.manifest");
+        SyntheticLibrary.generate(library, files / 10, 10, 64 * 1024);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cold {
+        @Setup(Level.Invocation)
+        public void forgetManifest(LoadSongsBenchmark benchmark) throws IOException {
+            Files.deleteIfExists(benchmark.manifest);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Warm {
+        @Setup(Level.Trial)
+        public void writeManifest(LoadSongsBenchmark benchmark) {
+            MusicTools.loadSongs(benchmark.library, benchmark.manifest);
+        }
+    }
+
+    @Benchmark
+    public Map<ArtistName, List<SongInfo>> cold(Cold cold) {
+        return MusicTools.loadSongs(library, manifest);
+    }
+
+    @Benchmark
+    public Map<ArtistName, List<SongInfo>> warm(Warm warm) {
+        return MusicTools.loadSongs(library, manifest);
+    }
+}
@@ -0,0 +1,70 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import shared.ArtistName;
+import shared.NodeInfo;
+import shared.RoutingTable;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Artist to owner lookups through the routing table, next to the per-request scan over the node map
+ * that the broker and consumer used before.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoutingBenchmark {
+
+    @Param({"1000", "100000"})
+    public int artists;
+
+    private Map<NodeInfo, List<ArtistName>> nodeData;
+    private RoutingTable routingTable;
+    private String[] queries;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        nodeData = new HashMap<>();
+        List<NodeInfo> nodes = Arrays.asList(new NodeInfo("localhost", 7000, 0), new NodeInfo("localhost", 7001, 1));
+        for (NodeInfo node : nodes) {
+            nodeData.put(node, new ArrayList<>());
+        }
+        for (int i = 0; i < artists; i++) {
+            ArtistName artistName = new ArtistName();
+            artistName.setArtistName("Artist " + i);
+            nodeData.get(nodes.get(i % nodes.size())).add(artistName);
+        }
+        routingTable = RoutingTable.of(nodeData);
+        Random random = new Random(42);
+        queries = new String[1024];
+        for (int i = 0; i < queries.length; i++) {
+            queries[i] = "Artist " + random.nextInt(artists);
+        }
+    }
+
+    @Benchmark
+    public RoutingTable.Route routingTable() {
+        return routingTable.lookup(queries[next++ & (queries.length - 1)]);
+    }
+
+    @Benchmark
+    public Map<NodeInfo, ArtistName> linearScan() {
+        String artistNameName = queries[next++ & (queries.length - 1)];
+        Map<NodeInfo, ArtistName> result = new HashMap<>();
+        for (Map.Entry<NodeInfo, List<ArtistName>> entry : nodeData.entrySet()) {
+            for (ArtistName artistName : entry.getValue()) {
+                if (artistNameName.equals(artistName.getArtistName())) {
+                    result.put(entry.getKey(), artistName);
+                    return result;
+                }
+            }
+        }
+        return null;
+    }
+}
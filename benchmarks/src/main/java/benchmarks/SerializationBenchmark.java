@@ -0,0 +1,65 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import shared.ChunkRequest;
+import shared.MP3Chunk;
+import shared.SongInfo;
+import util.BinaryCodec;
+import util.Codec;
+import util.JavaCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode plus decode of the two messages on the streaming path, with each codec.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+    @Param({"java", "binary"})
+    public String codecName;
+
+    private Codec codec;
+    private ChunkRequest chunkRequest;
+    private MP3Chunk chunk;
+
+    @Setup
+    public void setUp() {
+        codec = "java".equals(codecName) ? JavaCodec.INSTANCE : BinaryCodec.INSTANCE;
+        SongInfo song = new SongInfo("A Waltz For Naseem", "Some Artist", "Some Album", "Jazz",
+                "data/A Waltz For Naseem.mp3", 3584000, 524288);
+        chunkRequest = new ChunkRequest(song, 3);
+        chunk = new MP3Chunk(song, 3, new byte[512000]);
+    }
+
+    @Benchmark
+    public Object chunkRequestRoundTrip() throws IOException {
+        return codec.decode(join(codec.encode(chunkRequest)));
+    }
+
+    @Benchmark
+    public Object mp3ChunkRoundTrip() throws IOException {
+        return codec.decode(join(codec.encode(chunk)));
+    }
+
+    // what the receiving side holds after reading one frame
+    private static ByteBuffer join(ByteBuffer[] buffers) {
+        int length = 0;
+        for (ByteBuffer buffer : buffers) {
+            length += buffer.remaining();
+        }
+        ByteBuffer frame = ByteBuffer.allocate(length);
+        for (ByteBuffer buffer : buffers) {
+            frame.put(buffer.duplicate());
+        }
+        frame.flip();
+        return frame;
+    }
+}
@@ -1,38 +1,83 @@
 package broker;
 
+import shared.ArtistDirectory;
 import shared.ArtistName;
+import shared.ChunkRangeRequest;
 import shared.ChunkRequest;
+import shared.ChunkSizing;
+import shared.ClusterConfig;
+import shared.Heartbeat;
+import shared.MP3Chunk;
+import shared.MetadataDelta;
+import shared.MetadataRequest;
 import shared.NodeInfo;
+import shared.PublisherReport;
+import shared.RoutingTable;
+import shared.SongInfo;
+import util.ConnectionPool;
+import util.Log;
+import util.Membership;
+import util.MetricsRegistry;
+import util.RequestHandler;
+import util.ResponseStream;
+import util.Server;
+import util.ServerMode;
+import util.SocketServer;
+import util.Subscription;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.math.BigInteger;
-import java.net.*;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.net.ServerSocket;
 import java.util.*;
-import java.util.Map.Entry;
-
-
-public class Broker implements Comparable<Broker> {
-
-    private final String[] brokerIps = {"localhost", "localhost", "localhost"};
-    public final int[] brokerPorts = {6000, 6001, 6002};
-    private Map<NodeInfo, List<ArtistName>> publisherData;
-    private Map<NodeInfo, List<ArtistName>> brokerData;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+
+public class Broker implements Comparable<Broker>, RequestHandler {
+
+    // broker 0 numbers the changes, the others follow it; the three views below are derived from it
+    private final ArtistDirectory publisherDirectory;
+    private volatile Map<NodeInfo, List<ArtistName>> publisherData;
+    private volatile Map<NodeInfo, List<ArtistName>> brokerData;
+    // which publisher serves which artist, decided on broker 0 only; -Dbroker.rebalance.moves artists move per report
+    private final PublisherBalancer publisherBalancer = new PublisherBalancer(Integer.getInteger("broker.rebalance.moves", 64));
+    // rebuilt and swapped whenever publisherData changes
+    private volatile RoutingTable publisherRoutes = RoutingTable.EMPTY;
+    // sends and pulls of publisher data, kept off the threads serving requests
+    private final ExecutorService metadataExecutor = Executors.newCachedThreadPool(SocketServer.namedThreads("metadata"));
     private int brokerNo = -1;
-    private List<NodeInfo> brokers = new ArrayList<>();
-    private static int modInt = 19;
+    private final List<NodeInfo> brokers;
+    // points per broker on the hash ring, -Dbroker.ring.vnodes
+    private final int virtualNodes = Integer.getInteger("broker.ring.vnodes", HashRing.DEFAULT_VIRTUAL_NODES);
+    private ServerMode serverMode = ServerMode.SERIAL;
+    private int poolSize = SocketServer.DEFAULT_POOL_SIZE;
+    private final MetricsRegistry metrics;
+    private final ConnectionPool connectionPool;
+    // the other brokers and every publisher ever heard of, pinged so dead ones are skipped instead of timed out
+    private final Membership membership;
+    // when a broker last went down or came back, which starts a new epoch of the broker routes
+    private volatile long ringChangedAt;
+    private final ChunkCache chunkCache = createChunkCache();
+    // identical requests arriving while one is on its way to the publisher wait for that one
+    private final SingleFlight<ChunkCache.Key> chunkFetches = new SingleFlight<>();
+    private final SingleFlight<String> artistLookups = new SingleFlight<>();
+    // songs being streamed to consumers right now, by song id and chunk size; -Dbroker.multicast.window parts are asked for ahead
+    private final Map<String, SongMulticast> multicasts = new ConcurrentHashMap<>();
+    private final int multicastWindow = Integer.getInteger("broker.multicast.window", 8);
+    // where subscribers write to their consumers, off the connection readers that wake them
+    private final ExecutorService multicastPumps = Executors.newCachedThreadPool(SocketServer.namedThreads("multicast"));
 
     static Broker thisBroker;
 
     public static void main(String[] arg) {
-        if (arg.length != 1) return;
+        if (arg.length < 1) return;
         int thisBrokerNo = Integer.parseInt(arg[0]);
 
         thisBroker = new Broker(thisBrokerNo);
-        thisBroker.init();
+        if (arg.length > 1) thisBroker.serverMode = ServerMode.fromString(arg[1]);
+        if (arg.length > 2) thisBroker.poolSize = Integer.parseInt(arg[2]);
 
         System.out.println("This broker is : " + thisBroker);
         thisBroker.startServer(thisBroker.getPort());
@@ -40,66 +85,83 @@ public class Broker implements Comparable<Broker> {
 
 
     public Broker(int brokerNo) {
-        this.brokerNo = brokerNo;
+        this(brokerNo, ClusterConfig.brokers());
     }
 
-    public void init() {
-        for (int i = 0; i < brokerIps.length; i++) {
-            NodeInfo broker = new NodeInfo(brokerIps[i], brokerPorts[i], i);
-            brokers.add(broker);
-        }
+    public Broker(int brokerNo, List<NodeInfo> brokers) {
+        this.brokerNo = brokerNo;
+        this.brokers = brokers;
+        this.publisherDirectory = isCoordinator() ? new ArtistDirectory(System.currentTimeMillis()) : new ArtistDirectory();
+        this.metrics = new MetricsRegistry("Br" + brokerNo);
+        this.connectionPool = new ConnectionPool(metrics);
+        this.membership = new Membership(brokers.get(brokerNo), connectionPool, metrics);
+        membership.onChange(this::availabilityChanged);
+        metrics.gauge("cache.hits", chunkCache::getHits);
+        metrics.gauge("cache.misses", chunkCache::getMisses);
+        metrics.gauge("cache.evictions", chunkCache::getEvictions);
+        metrics.gauge("cache.entries", chunkCache::getEntries);
+        metrics.gauge("cache.bytes", chunkCache::getUsedBytes);
+        metrics.gauge("multicast.active", multicasts::size);
+        metrics.gauge("singleflight.chunks.fetches", chunkFetches::getFetches);
+        metrics.gauge("singleflight.chunks.joined", chunkFetches::getJoined);
+        metrics.gauge("singleflight.artists.fetches", artistLookups::getFetches);
+        metrics.gauge("singleflight.artists.joined", artistLookups::getJoined);
     }
 
     public void startServer(int serverPort) {
-        ServerSocket serverSocket;
-        Socket clientSocket;
-        Object response;
-        try {
-            serverSocket = new ServerSocket(serverPort);
-            while (true) {
-                System.out.println("Server on port " + serverPort + " is waiting for a client.");
-                clientSocket = serverSocket.accept();
-                ObjectInputStream input = new ObjectInputStream(clientSocket.getInputStream());
-                ObjectOutputStream output = new ObjectOutputStream(clientSocket.getOutputStream());
-
-                Object inputObject = input.readObject();
-
-
-                System.out.println("Read data : " + inputObject);
-                response = processData(inputObject);
+        createServer().start(serverPort);
+    }
 
-                output.writeObject(response);
-                System.out.println("Responded with : " + response);
+    public void startServer(ServerSocket serverSocket) {
+        createServer().start(serverSocket);
+    }
 
-                output.flush();
-                clientSocket.close();
+    private Server createServer() {
+        if (!isCoordinator()) pullPublisherData();
+        for (NodeInfo broker : getBrokers()) {
+            membership.join(broker);
+        }
+        membership.start();
+        metrics.registerMBean();
+        Integer metricsPort = Integer.getInteger("metrics.http.port");
+        if (metricsPort != null) {
+            try {
+                metrics.startHttp(metricsPort);
+            } catch (IOException e) {
+                Log.warn("Could not start metrics endpoint on port " + metricsPort + " : " + e.getMessage());
             }
-        } catch (IOException e) {
-            System.out.println("IOException: " + e.getMessage());
-        } catch (ClassNotFoundException e) {
-            System.out.println("ClassNotFoundException: " + serverPort);
         }
-
+        return Server.create(this, serverMode, poolSize, metrics);
     }
 
 
+    @Override
     public Object processData(Object data) {
         Object result = new Object();
-        if (data instanceof Map) {
-            result = processDataFromPublisher((Map<NodeInfo, List<ArtistName>>) data);
-            if (brokerData == null || brokerData.isEmpty())
-                setBrokerData((Map<NodeInfo, List<ArtistName>>) result);
-            if (this.publisherData == null) {
-                setPublisherData((Map<NodeInfo, List<ArtistName>>) data);
-                System.out.println("Publisher data set to " + publisherData);
-            }
+        if (data instanceof Heartbeat) {
+            result = processInline(data);
+        } else if (data instanceof PublisherReport) {
+            result = registerPublisherReport((PublisherReport) data);
+        } else if (data instanceof Map) {
+            Map<NodeInfo, List<ArtistName>> nodeData = ArtistDirectory.asNodeMap(data);
+            if (nodeData != null) result = registerPublisherData(nodeData);
+        } else if (data instanceof MetadataDelta) {
+            result = applyPublisherData((MetadataDelta) data);
+        } else if (data instanceof MetadataRequest) {
+            result = processMetadataRequest((MetadataRequest) data);
         } else if (data instanceof ArtistName) {
-            result = processArtistDataFromConsumer((ArtistName) data);
+            result = fetchArtistData((ArtistName) data).join();
         } else if (data instanceof ChunkRequest) {
-            result = processChunkRequestFromConsumer((ChunkRequest) data);
+            result = fetchChunk((ChunkRequest) data).join();
         } else if (data instanceof String) {
             if ("Show me the money".equals(data)) {
                 result = brokerData;
+            } else if ("Show me the cache".equals(data)) {
+                result = chunkCache.toString();
+            } else if ("Show me the metrics".equals(data)) {
+                result = metrics.toText();
+            } else if ("Show me the members".equals(data)) {
+                result = membership.toString();
             }
         }
 //        System.out.println("Broker " + this + " is processing data...");
@@ -107,186 +169,342 @@ public class Broker implements Comparable<Broker> {
         return result;
     }
 
-    private Object processChunkRequestFromConsumer(ChunkRequest chunkRequest) {
-        Map<NodeInfo, ArtistName> publisherArtistNameMap = findCorrectPublisherByArtistName(chunkRequest.getSongInfo().getArtistName());
-        if (publisherArtistNameMap != null) {
-            NodeInfo publisher = publisherArtistNameMap.keySet().iterator().next();
-            return sendDataToServer(publisher.getIp(), publisher.getPort(), chunkRequest);
-        }
-
-        return null;
+    // heartbeats are answered by the connection reader, so a broker busy streaming is never taken for a dead one
+    @Override
+    public Object processInline(Object data) {
+        if (!(data instanceof Heartbeat)) return null;
+        // whoever pings this broker is watched back
+        membership.join(((Heartbeat) data).getFrom());
+        return membership.heartbeat();
     }
 
-    private Object processArtistDataFromConsumer(ArtistName artistName) {
-        Map<NodeInfo, ArtistName> publisherArtistNameMap = findCorrectPublisherByArtistName(artistName.getArtistName());
-        if (publisherArtistNameMap != null) {
-            NodeInfo publisher = publisherArtistNameMap.keySet().iterator().next();
-            ArtistName artist = publisherArtistNameMap.get(publisher);
-            return sendDataToServer(publisher.getIp(), publisher.getPort(), artist);
+    @Override
+    public void processStream(Object data, ResponseStream stream) throws IOException {
+        if (data instanceof ChunkRangeRequest) {
+            processChunkRangeRequestFromConsumer((ChunkRangeRequest) data, stream);
+        } else if (data instanceof ArtistName) {
+            stream.completeWith(fetchArtistData((ArtistName) data));
+        } else if (data instanceof ChunkRequest) {
+            stream.completeWith(fetchChunk((ChunkRequest) data));
+        } else {
+            stream.complete(processData(data));
         }
+    }
 
-        return null;
+    // every consumer streaming the same song shares one publisher stream, parts it will not bring are fetched one by one
+    private void processChunkRangeRequestFromConsumer(ChunkRangeRequest request, ResponseStream stream) throws IOException {
+        ChunkRangeRequest rangeRequest = normalized(request);
+        RoutingTable.Route route = findLivePublisher(rangeRequest.getSongInfo().getArtistName());
+        if (route == null) {
+            stream.complete(null);
+            return;
+        }
+        // consumers that negotiated other chunk sizes need parts cut differently, so they do not share
+        String multicastKey = rangeRequest.getSongInfo().getSongId() + "@" + rangeRequest.getSongInfo().getChunkSize();
+        int fromPart = Math.max(0, rangeRequest.getFromPart());
+        int toPart = Math.min(rangeRequest.getToPart(), rangeRequest.getSongInfo().getPartsTotal() - 1);
+        SongMulticast multicast;
+        MulticastSubscriber subscriber;
+        do {
+            multicast = multicasts.computeIfAbsent(multicastKey, k -> new SongMulticast(multicastWindow));
+            subscriber = new MulticastSubscriber(multicast, stream, fromPart, toPart,
+                    partNo -> fetchChunk(rangeRequest.chunkRequest(partNo)), multicastPumps);
+        } while (!multicast.join(subscriber, fromPart));
+        metrics.counter("multicast.subscribers").increment();
+        startMulticast(multicast, route.getNode(), rangeRequest, fromPart, toPart);
+
+        SongMulticast joined = multicast;
+        MulticastSubscriber subscribed = subscriber;
+        subscriber.getDone().whenComplete((sent, error) -> {
+            if (joined.leave(subscribed)) multicasts.remove(multicastKey, joined);
+        });
+        // the subscriber sends as chunks and credit come in, this worker is free once it is set up
+        stream.onCredit(subscriber::wake);
+        subscriber.pump();
+        stream.completeWith(subscriber.getDone());
     }
 
-    private Object processDataFromPublisher(Map<NodeInfo, List<ArtistName>> data) {
-        List<ArtistName> listOfArtists = new ArrayList<>();
-        List<List<ArtistName>> artists = new ArrayList<>(data.values());
-        for (List<ArtistName> list : artists) {
-            listOfArtists.addAll(list);
+    // the publisher streams from the first part that is not cached, the subscribers fetch the ones before from the cache
+    private void startMulticast(SongMulticast multicast, NodeInfo publisher, ChunkRangeRequest rangeRequest, int fromPart, int toPart) {
+        int upstreamFrom = fromPart;
+        while (upstreamFrom <= toPart && chunkCache.contains(rangeRequest.chunkRequest(upstreamFrom))) {
+            upstreamFrom++;
         }
-        return calculateKeys(listOfArtists);
+        if (upstreamFrom > toPart) {
+            multicast.start(upstreamFrom, shared -> Subscription.completed(0));
+            return;
+        }
+        ChunkRangeRequest upstreamRequest = new ChunkRangeRequest(rangeRequest.getSongInfo(), upstreamFrom, toPart);
+        boolean started = multicast.start(upstreamFrom, shared ->
+                connectionPool.subscribe(publisher.getIp(), publisher.getPort(), upstreamRequest, item -> {
+                    if (item instanceof MP3Chunk) {
+                        MP3Chunk chunk = (MP3Chunk) item;
+                        chunkCache.put(rangeRequest.chunkRequest(chunk.getPartNo()), chunk);
+                        shared.onChunk(chunk);
+                    }
+                }));
+        if (started) metrics.counter("multicast.upstreams").increment();
     }
 
+    private CompletableFuture<Object> fetchChunk(ChunkRequest request) {
+        ChunkRequest chunkRequest = normalized(request);
+        MP3Chunk cached = chunkCache.get(chunkRequest);
+        if (cached != null) return CompletableFuture.completedFuture(cached);
+
+        RoutingTable.Route route = findLivePublisher(chunkRequest.getSongInfo().getArtistName());
+        if (route == null) return CompletableFuture.completedFuture(null);
+        NodeInfo publisher = route.getNode();
+        // cached before the waiters are let go, so a request arriving after the fetch finds it there
+        return chunkFetches.fetch(ChunkCache.Key.of(chunkRequest), () ->
+                connectionPool.requestAsync(publisher.getIp(), publisher.getPort(), chunkRequest).thenApply(response -> {
+                    if (response instanceof MP3Chunk) {
+                        chunkCache.put(chunkRequest, (MP3Chunk) response);
+                    }
+                    return response;
+                }));
+    }
 
-    public Map<NodeInfo, List<ArtistName>> calculateKeys(List<ArtistName> listOfArtistNames) {
-        Map<NodeInfo, List<ArtistName>> responsibleFor = new HashMap<>();
-        Map<BigInteger, NodeInfo> brokerHashesMap = new HashMap<>();
-        Map<BigInteger, ArtistName> artistNameHashesMap = new HashMap<>();
-//        System.out.println("Broker: Brokers are " + getBrokers());
-        for (NodeInfo broker : getBrokers()) {
-            BigInteger hash = hashCode(broker.getIp() + ":" + broker.getPort()).mod(BigInteger.valueOf(modInt));
-            if (hash != null) {
-                brokerHashesMap.put(hash, broker);
-            }
-            responsibleFor.put(broker, new ArrayList<>());
-        }
+    // the chunk size a consumer asks for is clamped the way the publisher clamps it, before it goes into any
+    // multicast or cache key and upstream; an unknown one gets the default cut
+    private static SongInfo normalized(SongInfo songInfo) {
+        return songInfo.withChunkSize(songInfo.getChunkSize() > 0 ? songInfo.getChunkSize() : ChunkSizing.DEFAULT_CHUNK_SIZE);
+    }
 
-//        System.out.println("Broker hashes size: " + brokerHashesMap.size());
-//        System.out.println("Broker hashes : " + brokerHashesMap);
+    private static ChunkRangeRequest normalized(ChunkRangeRequest request) {
+        SongInfo songInfo = normalized(request.getSongInfo());
+        if (songInfo == request.getSongInfo()) return request;
+        return new ChunkRangeRequest(songInfo, request.getFromPart(), request.getToPart());
+    }
 
-        for (ArtistName artistName : listOfArtistNames) {
-            BigInteger hash = hashCode(artistName.getArtistName()).mod(BigInteger.valueOf(modInt));
-            if (hash != null) {
-                artistNameHashesMap.put(hash, artistName);
-            }
+    private static ChunkRequest normalized(ChunkRequest request) {
+        SongInfo songInfo = normalized(request.getSongInfo());
+        if (songInfo == request.getSongInfo()) return request;
+        return new ChunkRequest(songInfo, request.getPartNo());
+    }
+
+    private CompletableFuture<Object> fetchArtistData(ArtistName artistName) {
+        RoutingTable.Route route = findLivePublisher(artistName.getArtistName());
+        if (route != null) {
+            NodeInfo publisher = route.getNode();
+            return artistLookups.fetch(artistName.getArtistName(), () ->
+                    connectionPool.requestAsync(publisher.getIp(), publisher.getPort(), route.getArtistName()));
         }
 
-//        System.out.println("Artist name hashes size: " + artistNameHashesMap.size());
-//        System.out.println("Artist name hashes : " + artistNameHashesMap);
+        // maybe this broker missed an update, the consumer will ask again
+        if (!isCoordinator()) pullPublisherData();
+        return CompletableFuture.completedFuture(null);
+    }
 
-        List<BigInteger> brokerHashes = new ArrayList<>(brokerHashesMap.keySet());
-        List<BigInteger> artistNameHashes = new ArrayList<>(artistNameHashesMap.keySet());
-        Collections.sort(brokerHashes);
+    // a publisher joining or reporting its load; only broker 0 assigns artists, the others hand the report to it
+    private Object registerPublisherReport(PublisherReport report) {
+        if (!isCoordinator()) {
+            NodeInfo coordinator = getBrokers().get(0);
+            return sendDataToServer(coordinator.getIp(), coordinator.getPort(), report);
+        }
+        membership.join(report.getPublisher());
+        Map<NodeInfo, List<ArtistName>> assignment = publisherBalancer.report(report);
+        Log.debug(() -> "Publisher weights after " + report + " : " + publisherBalancer.getWeights());
+        return registerPublisherData(assignment);
+    }
 
-        for (BigInteger artistNameHash : artistNameHashes) {
-            BigInteger tmpHash = findRightBroker(brokerHashes, artistNameHash);
-//            System.out.println("Broker " + tmpHash + " responsible for artist " + artistNameHash);
-            if (tmpHash != null) {
-                responsibleFor.get(brokerHashesMap.get(tmpHash)).add(artistNameHashesMap.get(artistNameHash));
+    // the whole artist to publisher map; only broker 0 numbers changes, the others hand the registration to it
+    private Object registerPublisherData(Map<NodeInfo, List<ArtistName>> data) {
+        if (!isCoordinator()) {
+            NodeInfo coordinator = getBrokers().get(0);
+            return sendDataToServer(coordinator.getIp(), coordinator.getPort(), data);
+        }
+        MetadataDelta delta = publisherDirectory.register(data);
+        if (delta != null) {
+            publisherDataChanged();
+            Log.info("Publisher data at version " + delta.getToVersion() + " : " + publisherData);
+            // a broker that is down pulls what it missed once it is back
+            for (NodeInfo broker : getBrokers()) {
+                if (broker.getNo() != brokerNo && membership.isAvailable(broker)) pushPublisherData(broker, delta);
             }
         }
-
-//        System.out.println("Responsible for map : " + responsibleFor);
-        return responsibleFor;
+        return brokerData;
     }
 
-    private static BigInteger hashCode(String strBeforeHash) {
-        BigInteger bigInt = null;
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
-            byte[] messageDigest = md.digest(strBeforeHash.getBytes());
-            md.update(messageDigest);
-            byte[] digested = md.digest();
-            //Decoding
-            bigInt = new BigInteger(1, digested);
+    // answers with the version this broker is at after the delta
+    private Object applyPublisherData(MetadataDelta delta) {
+        if (publisherDirectory.apply(delta)) {
+            publisherDataChanged();
+            Log.info("Publisher data at version " + delta.getToVersion() + " : " + publisherData);
+        } else {
+            Log.info("Publisher data " + delta.getFromVersion() + "->" + delta.getToVersion()
+                    + " does not follow " + publisherDirectory + ", pulling");
+            pullPublisherData();
+        }
+        return publisherDirectory.getVersion();
+    }
 
-        } catch (NoSuchAlgorithmException e) {
+    private Object processMetadataRequest(MetadataRequest request) {
+        if (request.getRoutes() == MetadataRequest.Routes.PUBLISHERS) {
+            return publisherDirectory.since(request.getEpoch(), request.getSinceVersion());
+        }
+        // broker routes also change when a broker goes down or comes back, which starts a new epoch of them, so
+        // whoever asks with the epoch before gets all of them again
+        long epoch = Math.max(publisherDirectory.getEpoch(), ringChangedAt);
+        MetadataDelta delta = request.getEpoch() == epoch
+                ? publisherDirectory.since(publisherDirectory.getEpoch(), request.getSinceVersion())
+                : publisherDirectory.since(publisherDirectory.getEpoch(), 0);
+        // the same change, expressed as which broker is now responsible for the artists
+        List<ArtistName> added = new ArrayList<>();
+        for (List<ArtistName> artists : delta.getAdded().values()) {
+            added.addAll(artists);
+        }
+        Map<NodeInfo, List<ArtistName>> addedByBroker = calculateKeys(added);
+        addedByBroker.values().removeIf(List::isEmpty);
+        return new MetadataDelta(epoch, delta.getFromVersion(), delta.getToVersion(), addedByBroker, delta.getRemoved());
+    }
 
-        } finally {
-            return bigInt;
+    private synchronized void publisherDataChanged() {
+        Map<NodeInfo, List<ArtistName>> data = publisherDirectory.toNodeMap();
+        List<ArtistName> listOfArtists = new ArrayList<>();
+        for (List<ArtistName> list : data.values()) {
+            listOfArtists.addAll(list);
+        }
+        for (NodeInfo publisher : data.keySet()) {
+            membership.join(publisher);
         }
+        this.publisherRoutes = RoutingTable.of(data);
+        this.publisherData = data;
+        this.brokerData = calculateKeys(listOfArtists);
+    }
+
+    // fire and forget: a broker that misses it pulls the gap once it notices
+    private void pushPublisherData(NodeInfo broker, MetadataDelta delta) {
+        metadataExecutor.execute(() -> connectionPool.send(broker.getIp(), broker.getPort(), delta)
+                .orTimeout(ConnectionPool.REQUEST_TIMEOUT, TimeUnit.MILLISECONDS)
+                .whenComplete((version, error) -> {
+                    if (error != null) Log.warn("Broker " + broker + " missed publisher data version "
+                            + delta.getToVersion() + " : " + error);
+                }));
     }
 
-    private BigInteger findRightBroker(List<BigInteger> brokerHashes, BigInteger artistNameHash) {
-        for (int i = 0; i < brokerHashes.size(); i++) {
-            if (artistNameHash.compareTo(brokerHashes.get(i)) < 0) {
-//                System.out.println("First case <");
-                return brokerHashes.get(i);
-            } else {
-                if (i == brokerHashes.size() - 1) {
-//                    System.out.println("Second case mod 1");
-//                    BigInteger afterMod = artistNameHash.mod(brokerHashes.get(i));
-//                    for (int j = 0; j < brokerHashes.size(); j++) {
-//                        if (afterMod.compareTo(brokerHashes.get(j)) < 0) {
-//                            return brokerHashes.get(j);
-//                        }
-//                    }
-                    return brokerHashes.get(0);
+    // asks the other brokers in turn, broker 0 first, for what changed since the version this one is at
+    private void pullPublisherData() {
+        metadataExecutor.execute(() -> {
+            long epoch = publisherDirectory.getEpoch();
+            long version = publisherDirectory.getVersion();
+            for (NodeInfo broker : getBrokers()) {
+                if (broker.getNo() == brokerNo || !membership.isAvailable(broker)) continue;
+                Object response = sendDataToServer(broker.getIp(), broker.getPort(),
+                        new MetadataRequest(MetadataRequest.Routes.PUBLISHERS, epoch, version));
+                if (!(response instanceof MetadataDelta) || !publisherDirectory.apply((MetadataDelta) response)) continue;
+                boolean changed = publisherDirectory.getEpoch() != epoch || publisherDirectory.getVersion() != version;
+                if (changed) {
+                    publisherDataChanged();
+                    Log.info("Publisher data pulled from " + broker + " : " + publisherDirectory);
                 }
+                // a peer that is behind broker 0 may have nothing new, so only its answer is final
+                if (changed || broker.getNo() == 0) return;
             }
-        }
-        return null;
+        });
     }
 
-    public Map<NodeInfo, ArtistName> findCorrectPublisherByArtistName(String artistNameName) {
-        Map<NodeInfo, ArtistName> result = new HashMap<>();
-        System.out.println("Broker has publisher data : " + getPublisherData());
-        Set<Entry<NodeInfo, List<ArtistName>>> entrySet = getPublisherData().entrySet();
-        for (Entry entry : entrySet) {
-            for (ArtistName artistName : (List<ArtistName>) entry.getValue()) {
-                if (artistNameName.equals(artistName.getArtistName())) {
-                    result.put((NodeInfo) entry.getKey(), artistName);
-                    System.out.println("Correct publisher : " + result);
-                    return result;
-                }
+
+    public Map<NodeInfo, List<ArtistName>> calculateKeys(List<ArtistName> listOfArtistNames) {
+        Map<NodeInfo, List<ArtistName>> responsibleFor = new HashMap<>();
+        List<NodeInfo> liveBrokers = new ArrayList<>();
+        for (NodeInfo broker : getBrokers()) {
+            responsibleFor.put(broker, new ArrayList<>());
+            // a broker that is down is off the ring until it is back, its artists go to the next one
+            if (membership.isAvailable(broker)) liveBrokers.add(broker);
+        }
+        HashRing ring = new HashRing(liveBrokers, virtualNodes);
+        for (ArtistName artistName : listOfArtistNames) {
+            NodeInfo broker = ring.nodeFor(artistName.getArtistName());
+            if (broker != null) {
+                responsibleFor.get(broker).add(artistName);
             }
         }
-        return null;
+        return responsibleFor;
     }
 
+    public RoutingTable.Route findCorrectPublisherByArtistName(String artistNameName) {
+        return publisherRoutes.lookup(artistNameName);
+    }
 
-    public Object sendDataToServer(String hostName, int port, Object data) {
+    // a publisher that is down fails the request at once, broker 0 moves its artists to one that is up
+    private RoutingTable.Route findLivePublisher(String artistNameName) {
+        RoutingTable.Route route = findCorrectPublisherByArtistName(artistNameName);
+        if (route == null || membership.isAvailable(route.getNode())) return route;
+        metrics.counter("routing.down").increment();
+        return null;
+    }
 
-        SocketAddress socketAddress = new InetSocketAddress(hostName, port);
-        Socket socket = new Socket();
-        Object response = new Object();
-        try {
-            socket.connect(socketAddress, 2000);
-            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-            System.out.println("Server wrote output data : " + data);
-            out.writeObject(data);
-            out.flush();
-            ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-            response = in.readObject();
-            System.out.println("Server read input data : " + response);
-            out.close();
-            in.close();
-            socket.close();
-
-        } catch (SocketTimeoutException exception) {
-            System.out.println("SocketTimeoutException " + hostName + ":" + port + ". " + exception.getMessage());
-        } catch (IOException exception) {
-            System.out.println(
-                    "IOException - Unable to connect to " + hostName + ":" + port + ". " + exception.getMessage());
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
+    private void availabilityChanged(NodeInfo node, boolean up) {
+        if (getBrokers().contains(node)) {
+            ringChangedAt = System.currentTimeMillis();
+            publisherDataChanged();
+            Log.info(node + (up ? " is back on" : " is off") + " the ring");
+            return;
         }
+        if (!isCoordinator()) return;
+        Map<NodeInfo, List<ArtistName>> assignment = publisherBalancer.setAvailable(node, up);
+        if (assignment != null) registerPublisherData(assignment);
+    }
 
+
+    public Object sendDataToServer(String hostName, int port, Object data) {
+        Log.debug(() -> "Server wrote output data : " + data);
+        Object response = connectionPool.request(hostName, port, data);
+        Log.debug(() -> "Server read input data : " + response);
         return response;
+    }
+
+    // tuned with -Dbroker.cache.bytes, -Dbroker.cache.policy=lru|tinylfu and -Dbroker.cache.offheap=true
+    private static ChunkCache createChunkCache() {
+        long maxBytes = Long.getLong("broker.cache.bytes", 256L * 1024 * 1024);
+        String policy = System.getProperty("broker.cache.policy", "tinylfu");
+        boolean offHeap = Boolean.getBoolean("broker.cache.offheap");
+        return new ChunkCache(maxBytes, EvictionPolicy.fromString(policy, maxBytes), offHeap);
+    }
+
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    public SingleFlight<ChunkCache.Key> getChunkFetches() {
+        return chunkFetches;
+    }
 
+    public SingleFlight<String> getArtistLookups() {
+        return artistLookups;
+    }
+
+    public Membership getMembership() {
+        return membership;
+    }
+
+    public ChunkCache getChunkCache() {
+        return chunkCache;
     }
 
     public String getIp() {
-        return brokerIps[brokerNo];
+        return brokers.get(brokerNo).getIp();
     }
 
     public int getPort() {
-        return brokerPorts[brokerNo];
+        return brokers.get(brokerNo).getPort();
+    }
+
+    public void setServerMode(ServerMode serverMode, int poolSize) {
+        this.serverMode = serverMode;
+        this.poolSize = poolSize;
     }
 
     public Map<NodeInfo, List<ArtistName>> getPublisherData() {
         return publisherData;
     }
 
-    public void setPublisherData(Map<NodeInfo, List<ArtistName>> publisherData) {
-        this.publisherData = publisherData;
-        if (brokerNo != 0) return;
-        for (NodeInfo broker : getBrokers()) {
-            if (broker.getNo() == this.brokerNo) continue;
-//            System.out.println("Setting publisher data for broker : " + broker);
-            Object response = sendDataToServer(broker.getIp(), broker.getPort(), publisherData);
-//            System.out.println("Response on broker set publisher data " + response);
-        }
+    public ArtistDirectory getPublisherDirectory() {
+        return publisherDirectory;
+    }
+
+    public boolean isCoordinator() {
+        return brokerNo == 0;
     }
 
     public List<NodeInfo> getBrokers() {
@@ -297,10 +515,6 @@ public class Broker implements Comparable<Broker> {
         return brokerData;
     }
 
-    public void setBrokerData(Map<NodeInfo, List<ArtistName>> brokerData) {
-        this.brokerData = brokerData;
-    }
-
     @Override
     public String toString() {
         return "Broker{" +
@@ -0,0 +1,162 @@
+package broker;
+
+import shared.ChunkRequest;
+import shared.MP3Chunk;
+import shared.SongInfo;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Chunks the broker has already proxied, bounded by the total size of their payloads.
+ * Payloads can be kept in direct buffers so that a large cache does not grow the heap the GC has to walk.
+ */
+public class ChunkCache {
+
+    private final long maxBytes;
+    private final boolean offHeap;
+    private final EvictionPolicy<Key> policy;
+    private final Map<Key, ByteBuffer> chunks = new HashMap<>();
+    private long usedBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public ChunkCache(long maxBytes, EvictionPolicy<Key> policy, boolean offHeap) {
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+        this.offHeap = offHeap;
+    }
+
+    public MP3Chunk get(ChunkRequest chunkRequest) {
+        Key key = Key.of(chunkRequest);
+        ByteBuffer payload;
+        synchronized (this) {
+            payload = chunks.get(key);
+            if (payload == null) {
+                policy.recordMiss(key);
+            } else {
+                policy.recordAccess(key);
+            }
+        }
+        if (payload == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return new MP3Chunk(chunkRequest.getSongInfo(), chunkRequest.getPartNo(), payload.duplicate());
+    }
+
+    // a peek that counts neither as a hit nor as a miss
+    public synchronized boolean contains(ChunkRequest chunkRequest) {
+        return chunks.containsKey(Key.of(chunkRequest));
+    }
+
+    public void put(ChunkRequest chunkRequest, MP3Chunk chunk) {
+        int weight = chunk.getSize();
+        if (weight > maxBytes) return;
+        ByteBuffer payload = copyOf(chunk.getPayload());
+        Key key = Key.of(chunkRequest);
+        synchronized (this) {
+            if (chunks.containsKey(key)) return;
+            chunks.put(key, payload);
+            usedBytes += weight;
+            policy.onInsert(key, weight);
+            while (usedBytes > maxBytes) {
+                Key victim = policy.nextVictim();
+                if (victim == null) break;
+                usedBytes -= chunks.remove(victim).remaining();
+                policy.onRemove(victim);
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    // the cache owns its copy, so a payload can never change under a reader
+    private ByteBuffer copyOf(ByteBuffer source) {
+        ByteBuffer copy = offHeap ? ByteBuffer.allocateDirect(source.remaining()) : ByteBuffer.allocate(source.remaining());
+        copy.put(source.duplicate());
+        copy.flip();
+        return copy;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public synchronized int getEntries() {
+        return chunks.size();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "ChunkCache{" +
+                "hits=" + getHits() +
+                ", misses=" + getMisses() +
+                ", evictions=" + getEvictions() +
+                ", entries=" + getEntries() +
+                ", bytes=" + getUsedBytes() + "/" + maxBytes +
+                (offHeap ? ", off-heap" : "") +
+                '}';
+    }
+
+    public static final class Key {
+        private final long songId;
+        // the same part number is a different slice of the song for every chunk size
+        private final int chunkSize;
+        private final int partNo;
+
+        Key(long songId, int chunkSize, int partNo) {
+            this.songId = songId;
+            this.chunkSize = chunkSize;
+            this.partNo = partNo;
+        }
+
+        static Key of(ChunkRequest chunkRequest) {
+            SongInfo songInfo = chunkRequest.getSongInfo();
+            return new Key(songInfo.getSongId(), songInfo.getChunkSize(), chunkRequest.getPartNo());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Key key = (Key) o;
+
+            return songId == key.songId && chunkSize == key.chunkSize && partNo == key.partNo;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = Long.hashCode(songId);
+            result = 31 * result + chunkSize;
+            result = 31 * result + partNo;
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return Long.toHexString(songId) + "@" + chunkSize + "#" + partNo;
+        }
+    }
+}
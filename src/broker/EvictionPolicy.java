@@ -0,0 +1,30 @@
+package broker;
+
+/**
+ * Decides which entries a {@link ChunkCache} keeps. Calls are made under the cache's lock.
+ */
+public interface EvictionPolicy<K> {
+
+    void recordAccess(K key);
+
+    void recordMiss(K key);
+
+    void onInsert(K key, int weight);
+
+    void onRemove(K key);
+
+    // the entry to drop next while the cache is over its byte budget
+    K nextVictim();
+
+    static <K> EvictionPolicy<K> fromString(String policy, long maxBytes) {
+        switch (policy.toLowerCase()) {
+            case "lru":
+                return new LruPolicy<>();
+            case "tinylfu":
+            case "w-tinylfu":
+                return new TinyLfuPolicy<>(maxBytes);
+            default:
+                throw new IllegalArgumentException("Unknown eviction policy : " + policy);
+        }
+    }
+}
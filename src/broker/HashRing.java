@@ -0,0 +1,53 @@
+package broker;
+
+import shared.NodeInfo;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Consistent-hash ring over 64-bit hashes. Every node is placed at {@code virtualNodes} points so that keys
+ * spread evenly, and adding or removing a node only moves the keys between it and its ring neighbours.
+ */
+public class HashRing {
+
+    public static final int DEFAULT_VIRTUAL_NODES = 256;
+
+    private final NavigableMap<Long, NodeInfo> ring = new TreeMap<>();
+
+    public HashRing(Collection<NodeInfo> nodes, int virtualNodes) {
+        for (NodeInfo node : nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(node.getIp() + ":" + node.getPort() + "#" + i), node);
+            }
+        }
+    }
+
+    public NodeInfo nodeFor(String key) {
+        if (ring.isEmpty()) return null;
+        Map.Entry<Long, NodeInfo> owner = ring.ceilingEntry(hash(key));
+        return owner != null ? owner.getValue() : ring.firstEntry().getValue();
+    }
+
+    public int size() {
+        return ring.size();
+    }
+
+    // FNV-1a over the UTF-8 bytes, finished with the murmur3 mixer so that similar names land far apart
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,34 @@
+package broker;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+public class LruPolicy<K> implements EvictionPolicy<K> {
+
+    private final LinkedHashMap<K, Boolean> order = new LinkedHashMap<>(16, 0.75f, true);
+
+    @Override
+    public void recordAccess(K key) {
+        order.get(key);
+    }
+
+    @Override
+    public void recordMiss(K key) {
+    }
+
+    @Override
+    public void onInsert(K key, int weight) {
+        order.put(key, Boolean.TRUE);
+    }
+
+    @Override
+    public void onRemove(K key) {
+        order.remove(key);
+    }
+
+    @Override
+    public K nextVictim() {
+        Iterator<K> eldest = order.keySet().iterator();
+        return eldest.hasNext() ? eldest.next() : null;
+    }
+}
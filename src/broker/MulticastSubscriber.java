@@ -0,0 +1,123 @@
+package broker;
+
+import shared.MP3Chunk;
+import util.ConnectionPool;
+import util.ResponseStream;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntFunction;
+
+/**
+ * One consumer's range of a song, fed from a {@link SongMulticast} without holding a thread: {@link #pump}
+ * sends whatever can be sent and returns, and runs again when a chunk arrives or the consumer grants credit.
+ * Those wake ups come on connection readers, so the pump they ask for runs on {@code executor}: writing to a slow
+ * consumer then holds one of its threads, never the publisher connection every other subscriber is fed from.
+ * Parts the multicast will not bring, or not within the request timeout, are fetched one by one.
+ */
+class MulticastSubscriber {
+
+    private final SongMulticast multicast;
+    private final ResponseStream stream;
+    private final int toPart;
+    private final IntFunction<CompletableFuture<Object>> fetchPart;
+    private final Executor executor;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    // completes with the number of parts sent
+    private final CompletableFuture<Integer> done = new CompletableFuture<>();
+    private int nextPart;
+    private int sent;
+    // nextPart once it is here, until the consumer has credit for it
+    private MP3Chunk ready;
+    private boolean fetching;
+    private int awaiting = -1;
+    private int timedOut = -1;
+
+    MulticastSubscriber(SongMulticast multicast, ResponseStream stream, int fromPart, int toPart,
+                        IntFunction<CompletableFuture<Object>> fetchPart, Executor executor) {
+        this.multicast = multicast;
+        this.stream = stream;
+        this.nextPart = fromPart;
+        this.toPart = toPart;
+        this.fetchPart = fetchPart;
+        this.executor = executor;
+    }
+
+    // pumps on the executor, once for any number of wake ups that come in before it runs
+    void wake() {
+        if (done.isDone() || !scheduled.compareAndSet(false, true)) return;
+        executor.execute(() -> {
+            scheduled.set(false);
+            pump();
+        });
+    }
+
+    synchronized void pump() {
+        if (done.isDone()) return;
+        try {
+            while (nextPart <= toPart) {
+                if (ready == null) ready = multicast.part(nextPart);
+                if (ready == null) {
+                    if (fetching) return;
+                    if (timedOut != nextPart && multicast.willBring(nextPart)) {
+                        awaitPart();
+                        return;
+                    }
+                    CompletableFuture<Object> chunk = fetchPart.apply(nextPart);
+                    if (!chunk.isDone()) {
+                        fetching = true;
+                        int partNo = nextPart;
+                        chunk.whenComplete((fetched, error) -> fetched(partNo, fetched));
+                        return;
+                    }
+                    Object fetched = chunk.getNow(null);
+                    if (!(fetched instanceof MP3Chunk)) break;
+                    ready = (MP3Chunk) fetched;
+                }
+                // resumed through onCredit once the consumer grants more
+                if (!stream.tryNext(ready)) return;
+                ready = null;
+                sent++;
+                nextPart++;
+                multicast.advanced(this, nextPart);
+            }
+        } catch (IOException e) {
+            // the consumer cancelled or went away
+        }
+        done.complete(sent);
+    }
+
+    private void fetched(int partNo, Object chunk) {
+        synchronized (this) {
+            if (partNo != nextPart || done.isDone()) return;
+            fetching = false;
+            if (!(chunk instanceof MP3Chunk)) {
+                done.complete(sent);
+                return;
+            }
+            ready = (MP3Chunk) chunk;
+        }
+        wake();
+    }
+
+    // gives the multicast one request timeout to bring the part, then fetches it instead
+    private void awaitPart() {
+        if (awaiting == nextPart) return;
+        awaiting = nextPart;
+        int partNo = nextPart;
+        CompletableFuture.delayedExecutor(ConnectionPool.REQUEST_TIMEOUT, TimeUnit.MILLISECONDS).execute(() -> {
+            synchronized (this) {
+                if (partNo != nextPart || ready != null) return;
+                timedOut = partNo;
+            }
+            wake();
+        });
+    }
+
+    CompletableFuture<Integer> getDone() {
+        return done;
+    }
+}
@@ -0,0 +1,163 @@
+package broker;
+
+import shared.ArtistName;
+import shared.NodeInfo;
+import shared.PublisherReport;
+
+import java.util.*;
+
+/**
+ * Decides which publisher serves which artist, on the coordinating broker. An artist weighs the bytes its
+ * songs take plus the bytes served of it lately, halved on every report of the publisher serving it, and a
+ * publisher weighs what its artists weigh together. Artists nobody serves yet go to the lightest publisher
+ * that has them, heaviest artist first. Then at most {@code maxMoves} artists move per report from the
+ * heaviest publisher to the lightest, so a publisher that joins takes over artists a few at a time and every
+ * change reaches the brokers as a small delta. A publisher that is down keeps its catalog here but serves
+ * nothing until it is up again, its artists going to the lightest publishers that have them meanwhile.
+ */
+class PublisherBalancer {
+
+    // publishers this close to each other, relative to the mean weight, are left as they are
+    static final double TOLERANCE = 0.1;
+    static final double LOAD_DECAY = 0.5;
+
+    private final int maxMoves;
+    // the artists every publisher has, by name
+    private final Map<NodeInfo, Map<String, ArtistName>> catalogs = new LinkedHashMap<>();
+    private final Map<String, Long> catalogBytes = new HashMap<>();
+    private final Map<String, Double> load = new HashMap<>();
+    private final Set<NodeInfo> down = new HashSet<>();
+    // sorted, so that equal reports always lead to the same assignment
+    private final SortedMap<String, NodeInfo> assignment = new TreeMap<>();
+
+    PublisherBalancer(int maxMoves) {
+        this.maxMoves = maxMoves;
+    }
+
+    // returns every publisher with the artists it serves from now on
+    synchronized Map<NodeInfo, List<ArtistName>> report(PublisherReport report) {
+        NodeInfo publisher = report.getPublisher();
+        Map<String, ArtistName> catalog = new HashMap<>();
+        for (Map.Entry<ArtistName, Long> artist : report.getCatalogBytes().entrySet()) {
+            String name = artist.getKey().getArtistName();
+            catalog.put(name, artist.getKey());
+            catalogBytes.put(name, artist.getValue());
+        }
+        catalogs.put(publisher, catalog);
+        for (Map.Entry<String, NodeInfo> artist : assignment.entrySet()) {
+            if (publisher.equals(artist.getValue())) load.computeIfPresent(artist.getKey(), (name, bytes) -> bytes * LOAD_DECAY);
+        }
+        for (Map.Entry<ArtistName, Long> served : report.getServedBytes().entrySet()) {
+            load.merge(served.getKey().getArtistName(), (double) served.getValue(), Double::sum);
+        }
+        assignUnserved();
+        rebalance();
+        return toNodeMap();
+    }
+
+    // null if nothing changes, the publisher being unknown or already known to be that way
+    synchronized Map<NodeInfo, List<ArtistName>> setAvailable(NodeInfo publisher, boolean available) {
+        if (!catalogs.containsKey(publisher)) return null;
+        if (available ? !down.remove(publisher) : !down.add(publisher)) return null;
+        assignUnserved();
+        rebalance();
+        return toNodeMap();
+    }
+
+    private void assignUnserved() {
+        Set<String> known = new HashSet<>();
+        for (Map<String, ArtistName> catalog : catalogs.values()) {
+            known.addAll(catalog.keySet());
+        }
+        assignment.keySet().retainAll(known);
+        catalogBytes.keySet().retainAll(known);
+        load.keySet().retainAll(known);
+
+        List<String> unserved = new ArrayList<>();
+        for (String name : known) {
+            NodeInfo publisher = assignment.get(name);
+            if (publisher == null || down.contains(publisher) || !catalogs.get(publisher).containsKey(name)) unserved.add(name);
+        }
+        unserved.sort(Comparator.comparingDouble(this::weightOf).reversed().thenComparing(Comparator.naturalOrder()));
+        Map<NodeInfo, Double> weights = publisherWeights();
+        for (String name : unserved) {
+            NodeInfo lightest = null;
+            for (NodeInfo publisher : weights.keySet()) {
+                if (!catalogs.get(publisher).containsKey(name)) continue;
+                if (lightest == null || weights.get(publisher) < weights.get(lightest)) lightest = publisher;
+            }
+            // nobody up has it, so nobody serves it until one of its publishers is back
+            if (lightest == null) {
+                assignment.remove(name);
+                continue;
+            }
+            assignment.put(name, lightest);
+            weights.merge(lightest, weightOf(name), Double::sum);
+        }
+    }
+
+    private void rebalance() {
+        Map<NodeInfo, Double> weights = publisherWeights();
+        if (weights.size() < 2) return;
+        double mean = 0;
+        for (double weight : weights.values()) {
+            mean += weight / weights.size();
+        }
+        for (int move = 0; move < maxMoves; move++) {
+            NodeInfo heaviest = null;
+            NodeInfo lightest = null;
+            for (NodeInfo publisher : weights.keySet()) {
+                if (heaviest == null || weights.get(publisher) > weights.get(heaviest)) heaviest = publisher;
+                if (lightest == null || weights.get(publisher) < weights.get(lightest)) lightest = publisher;
+            }
+            double gap = weights.get(heaviest) - weights.get(lightest);
+            if (gap <= TOLERANCE * mean) return;
+            // the artist whose move leaves the two closest to each other
+            String best = null;
+            double bestGap = gap;
+            Map<String, ArtistName> lightestCatalog = catalogs.get(lightest);
+            for (Map.Entry<String, NodeInfo> artist : assignment.entrySet()) {
+                if (!heaviest.equals(artist.getValue()) || !lightestCatalog.containsKey(artist.getKey())) continue;
+                double remainingGap = Math.abs(gap - 2 * weightOf(artist.getKey()));
+                if (remainingGap < bestGap) {
+                    best = artist.getKey();
+                    bestGap = remainingGap;
+                }
+            }
+            if (best == null) return;
+            assignment.put(best, lightest);
+            weights.merge(heaviest, -weightOf(best), Double::sum);
+            weights.merge(lightest, weightOf(best), Double::sum);
+        }
+    }
+
+    private Map<NodeInfo, Double> publisherWeights() {
+        Map<NodeInfo, Double> weights = new LinkedHashMap<>();
+        for (NodeInfo publisher : catalogs.keySet()) {
+            if (!down.contains(publisher)) weights.put(publisher, 0.0);
+        }
+        for (Map.Entry<String, NodeInfo> artist : assignment.entrySet()) {
+            if (weights.containsKey(artist.getValue())) weights.merge(artist.getValue(), weightOf(artist.getKey()), Double::sum);
+        }
+        return weights;
+    }
+
+    private double weightOf(String name) {
+        return catalogBytes.getOrDefault(name, 0L) + load.getOrDefault(name, 0.0);
+    }
+
+    private Map<NodeInfo, List<ArtistName>> toNodeMap() {
+        Map<NodeInfo, List<ArtistName>> nodeData = new HashMap<>();
+        for (NodeInfo publisher : catalogs.keySet()) {
+            if (!down.contains(publisher)) nodeData.put(publisher, new ArrayList<>());
+        }
+        for (Map.Entry<String, NodeInfo> artist : assignment.entrySet()) {
+            nodeData.get(artist.getValue()).add(catalogs.get(artist.getValue()).get(artist.getKey()));
+        }
+        return nodeData;
+    }
+
+    synchronized Map<NodeInfo, Double> getWeights() {
+        return publisherWeights();
+    }
+}
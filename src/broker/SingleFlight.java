@@ -0,0 +1,70 @@
+package broker;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Upstream fetches in flight, by what they fetch. Whoever asks for something already being fetched waits on
+ * the same future instead of starting a fetch of its own, so a burst of identical requests reaches the
+ * publisher once. The entry goes as soon as the fetch completes; keeping the result around is up to the
+ * caller, which for chunks stores it in the {@link ChunkCache} before the waiters hear of it.
+ */
+public class SingleFlight<K> {
+
+    private final Map<K, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder fetches = new LongAdder();
+    private final LongAdder joined = new LongAdder();
+
+    CompletableFuture<Object> fetch(K key, Supplier<CompletableFuture<Object>> fetch) {
+        CompletableFuture<Object> mine = new CompletableFuture<>();
+        CompletableFuture<Object> running = inFlight.putIfAbsent(key, mine);
+        if (running != null) {
+            joined.increment();
+            return running;
+        }
+        fetches.increment();
+        CompletableFuture<Object> started;
+        try {
+            started = fetch.get();
+        } catch (RuntimeException e) {
+            // nobody would ever complete it, so whoever joined would wait forever
+            inFlight.remove(key, mine);
+            mine.completeExceptionally(e);
+            return mine;
+        }
+        started.whenComplete((result, error) -> {
+            inFlight.remove(key, mine);
+            if (error != null) {
+                mine.completeExceptionally(error);
+            } else {
+                mine.complete(result);
+            }
+        });
+        return mine;
+    }
+
+    public long getFetches() {
+        return fetches.sum();
+    }
+
+    // requests that waited on somebody else's fetch
+    public long getJoined() {
+        return joined.sum();
+    }
+
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    @Override
+    public String toString() {
+        return "SingleFlight{" +
+                "fetches=" + getFetches() +
+                ", joined=" + getJoined() +
+                ", inFlight=" + getInFlight() +
+                '}';
+    }
+}
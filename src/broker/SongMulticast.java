@@ -0,0 +1,129 @@
+package broker;
+
+import shared.MP3Chunk;
+import util.Subscription;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+
+/**
+ * One upstream subscription to a song, shared by every consumer streaming that song from this broker
+ * at the same time. Chunks are kept until every subscriber has sent them, so each subscriber can take them at
+ * its own pace, and the publisher is granted credit only up to {@code window} parts ahead of the fastest one.
+ * Whoever joins later and wants a part already dropped gets it from the chunk cache instead.
+ * Subscribers are woken whenever a chunk arrives or the upstream ends, never while this multicast is locked,
+ * and do their sending elsewhere, so the upstream reader only ever stores the chunk.
+ */
+class SongMulticast {
+
+    private final int window;
+    private final Map<Integer, MP3Chunk> parts = new HashMap<>();
+    private final List<MulticastSubscriber> subscribers = new CopyOnWriteArrayList<>();
+    // the next part of every subscriber
+    private final Map<MulticastSubscriber, Integer> positions = new HashMap<>();
+    // parts below this one were sent by every subscriber there was and are not kept
+    private int trimmedBelow;
+    private Subscription upstream;
+    private int fromPart;
+    // parts below this one have been asked for
+    private int requestedUpTo;
+    private boolean upstreamDone;
+    private boolean closed;
+
+    SongMulticast(int window) {
+        this.window = Math.max(1, window);
+    }
+
+    // false if the last subscriber just left, then a new multicast is needed
+    synchronized boolean join(MulticastSubscriber subscriber, int fromPart) {
+        if (closed) return false;
+        subscribers.add(subscriber);
+        positions.put(subscriber, fromPart);
+        return true;
+    }
+
+    // the first subscriber starts the upstream from the part it wants; returns whether it did
+    boolean start(int fromPart, Function<SongMulticast, Subscription> subscribe) {
+        Subscription started;
+        synchronized (this) {
+            if (upstream != null || closed) return false;
+            this.fromPart = fromPart;
+            this.requestedUpTo = fromPart + window;
+            upstream = subscribe.apply(this);
+            upstream.request(window);
+            started = upstream;
+        }
+        started.getResult().whenComplete((result, error) -> upstreamDone());
+        // whoever joined before now may want parts this upstream does not bring
+        wakeSubscribers();
+        return true;
+    }
+
+    void onChunk(MP3Chunk chunk) {
+        synchronized (this) {
+            if (closed || chunk.getPartNo() < trimmedBelow) return;
+            parts.put(chunk.getPartNo(), chunk);
+        }
+        wakeSubscribers();
+    }
+
+    private void upstreamDone() {
+        synchronized (this) {
+            upstreamDone = true;
+        }
+        wakeSubscribers();
+    }
+
+    private void wakeSubscribers() {
+        for (MulticastSubscriber subscriber : subscribers) {
+            subscriber.wake();
+        }
+    }
+
+    synchronized MP3Chunk part(int partNo) {
+        return parts.get(partNo);
+    }
+
+    // false if the part is not coming this way, because the upstream started after it or ended without it
+    synchronized boolean willBring(int partNo) {
+        if (closed || upstreamDone) return false;
+        return upstream == null || partNo >= Math.max(fromPart, trimmedBelow);
+    }
+
+    // a subscriber has sent everything below nextPart
+    synchronized void advanced(MulticastSubscriber subscriber, int nextPart) {
+        positions.put(subscriber, nextPart);
+        trim();
+        int wanted = nextPart + window;
+        if (wanted <= requestedUpTo || upstreamDone || upstream == null) return;
+        upstream.request(wanted - requestedUpTo);
+        requestedUpTo = wanted;
+    }
+
+    // true for the last subscriber, which also stops the upstream if it is still running
+    synchronized boolean leave(MulticastSubscriber subscriber) {
+        subscribers.remove(subscriber);
+        positions.remove(subscriber);
+        if (!subscribers.isEmpty()) {
+            trim();
+            return false;
+        }
+        closed = true;
+        if (upstream != null && !upstreamDone) upstream.cancel();
+        parts.clear();
+        return true;
+    }
+
+    private void trim() {
+        int slowest = Integer.MAX_VALUE;
+        for (int nextPart : positions.values()) {
+            slowest = Math.min(slowest, nextPart);
+        }
+        if (slowest <= trimmedBelow || slowest == Integer.MAX_VALUE) return;
+        trimmedBelow = slowest;
+        parts.keySet().removeIf(partNo -> partNo < trimmedBelow);
+    }
+}
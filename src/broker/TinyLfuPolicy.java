@@ -0,0 +1,157 @@
+package broker;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * W-TinyLFU over byte weights: new entries land in a small LRU window, and whatever falls out of the
+ * window only displaces an entry of the main segmented LRU when a frequency sketch says it has been
+ * asked for more often. One-hit wonders therefore cannot flush a popular song out of the cache.
+ */
+public class TinyLfuPolicy<K> implements EvictionPolicy<K> {
+
+    private static final int WINDOW = 0, PROBATION = 1, PROTECTED = 2;
+
+    private final long windowMaxBytes;
+    private final long protectedMaxBytes;
+    private final FrequencySketch sketch;
+    private final LinkedHashMap<K, Integer> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<K, Integer> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<K, Integer> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<K, Integer> segments = new HashMap<>();
+    private long windowBytes;
+    private long protectedBytes;
+
+    public TinyLfuPolicy(long maxBytes) {
+        this.windowMaxBytes = Math.max(1, maxBytes / 100);
+        this.protectedMaxBytes = (maxBytes - windowMaxBytes) * 8 / 10;
+        // sized for roughly the number of 500KB chunks that fit, with room for the ones that do not
+        this.sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(1024, maxBytes / 51200)));
+    }
+
+    @Override
+    public void recordAccess(K key) {
+        sketch.increment(key);
+        Integer segment = segments.get(key);
+        if (segment == null) return;
+        if (segment == WINDOW) {
+            window.get(key);
+        } else if (segment == PROTECTED) {
+            protectedSegment.get(key);
+        } else {
+            int weight = probation.remove(key);
+            protectedSegment.put(key, weight);
+            segments.put(key, PROTECTED);
+            protectedBytes += weight;
+            while (protectedBytes > protectedMaxBytes && protectedSegment.size() > 1) {
+                K demoted = protectedSegment.keySet().iterator().next();
+                int demotedWeight = protectedSegment.remove(demoted);
+                protectedBytes -= demotedWeight;
+                probation.put(demoted, demotedWeight);
+                segments.put(demoted, PROBATION);
+            }
+        }
+    }
+
+    @Override
+    public void recordMiss(K key) {
+        sketch.increment(key);
+    }
+
+    @Override
+    public void onInsert(K key, int weight) {
+        window.put(key, weight);
+        segments.put(key, WINDOW);
+        windowBytes += weight;
+    }
+
+    @Override
+    public void onRemove(K key) {
+        Integer segment = segments.remove(key);
+        if (segment == null) return;
+        if (segment == WINDOW) {
+            windowBytes -= window.remove(key);
+        } else if (segment == PROTECTED) {
+            protectedBytes -= protectedSegment.remove(key);
+        } else {
+            probation.remove(key);
+        }
+    }
+
+    @Override
+    public K nextVictim() {
+        K candidate = null;
+        while (windowBytes > windowMaxBytes && window.size() > 1) {
+            candidate = window.keySet().iterator().next();
+            int weight = window.remove(candidate);
+            windowBytes -= weight;
+            probation.put(candidate, weight);
+            segments.put(candidate, PROBATION);
+        }
+        if (probation.isEmpty()) {
+            if (!protectedSegment.isEmpty()) return protectedSegment.keySet().iterator().next();
+            return window.isEmpty() ? null : window.keySet().iterator().next();
+        }
+        K victim = probation.keySet().iterator().next();
+        if (candidate == null || candidate.equals(victim)) return victim;
+        // admission: the newcomer from the window only stays if it is wanted more than the eldest on probation
+        return sketch.frequency(candidate) > sketch.frequency(victim) ? victim : candidate;
+    }
+
+    static class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int[] SEEDS = {0x97cb3127, 0xb1a8a3c5, 0x5a1c9f3d, 0x3c6ef372};
+
+        private final int[][] counters;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int expectedEntries) {
+            int width = Integer.highestOneBit(Math.max(16, expectedEntries) * 2 - 1);
+            this.counters = new int[DEPTH][width];
+            this.mask = width - 1;
+            this.sampleSize = 10 * width;
+        }
+
+        void increment(Object key) {
+            int hash = spread(key.hashCode());
+            for (int i = 0; i < DEPTH; i++) {
+                int index = indexOf(hash, i);
+                if (counters[i][index] < 15) counters[i][index]++;
+            }
+            if (++additions == sampleSize) age();
+        }
+
+        int frequency(Object key) {
+            int hash = spread(key.hashCode());
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < DEPTH; i++) {
+                frequency = Math.min(frequency, counters[i][indexOf(hash, i)]);
+            }
+            return frequency;
+        }
+
+        // halving keeps the sketch biased towards recent popularity
+        private void age() {
+            for (int[] row : counters) {
+                for (int j = 0; j < row.length; j++) {
+                    row[j] >>>= 1;
+                }
+            }
+            additions /= 2;
+        }
+
+        private int indexOf(int hash, int row) {
+            int h = hash * SEEDS[row];
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        private static int spread(int hash) {
+            hash ^= hash >>> 17;
+            hash *= 0xed5ad4bb;
+            return hash ^ (hash >>> 11);
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package consumer;
+
+import shared.ChunkRangeRequest;
+import shared.ChunkRequest;
+import shared.MP3Chunk;
+import shared.NodeInfo;
+import shared.SongInfo;
+import util.ConnectionPool;
+import util.RetryPolicy;
+import util.Subscription;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fetches the parts of a song through a broker and hands them to a listener strictly in part order.
+ * The whole song is first subscribed to as one flow controlled stream with up to {@code window} parts of
+ * credit outstanding; parts the stream did not deliver are then requested individually while keeping up to
+ * {@code window} requests in flight, each retried as the {@link RetryPolicy} says. With a {@link ChunkStore}, parts already on disk are delivered from it and
+ * never asked for, and every part that arrives is stored.
+ */
+public class ChunkDownloader {
+
+    public interface Listener {
+        void onChunk(MP3Chunk chunk);
+    }
+
+    private final ConnectionPool connectionPool;
+    private final int window;
+    private final RetryPolicy retryPolicy;
+    private final boolean subscribe;
+    private volatile ChunkStore store;
+
+    public ChunkDownloader(ConnectionPool connectionPool, int window, RetryPolicy retryPolicy, boolean subscribe) {
+        this.connectionPool = connectionPool;
+        this.window = Math.max(1, window);
+        this.retryPolicy = retryPolicy;
+        this.subscribe = subscribe;
+    }
+
+    public void setStore(ChunkStore store) {
+        this.store = store;
+    }
+
+    public Stats download(NodeInfo broker, SongInfo songInfo, Listener listener) throws IOException, InterruptedException {
+        Progress progress = new Progress(songInfo, store);
+        // resumes after whatever is on disk already
+        progress.deliverStored(listener);
+        if (subscribe && progress.nextToDeliver < songInfo.getPartsTotal()) {
+            subscribe(broker, songInfo, listener, progress);
+        }
+        // whatever the range stream did not deliver, e.g. because the broker went away mid-song
+        fetchWindowed(broker, songInfo, listener, progress);
+        return progress.toStats(songInfo.getPartsTotal());
+    }
+
+    // credit is handed back once parts reach the listener, so a slow listener slows the broker down instead of filling the heap
+    private void subscribe(NodeInfo broker, SongInfo songInfo, Listener listener, Progress progress) throws InterruptedException {
+        BlockingQueue<Object> arrivals = new LinkedBlockingQueue<>();
+        Object end = new Object();
+        Subscription subscription = connectionPool.subscribe(broker.getIp(), broker.getPort(),
+                new ChunkRangeRequest(songInfo, progress.nextToDeliver, songInfo.getPartsTotal() - 1), arrivals::add);
+        subscription.getResult().whenComplete((result, error) -> arrivals.add(end));
+        subscription.request(window);
+
+        int consumed = 0;
+        Object arrival;
+        while ((arrival = arrivals.poll(ConnectionPool.REQUEST_TIMEOUT, TimeUnit.MILLISECONDS)) != end) {
+            if (arrival == null) {
+                // nothing for a whole request timeout, the rest is fetched part by part; cancelling the result
+                // also tells the broker to stop
+                subscription.getResult().cancel(false);
+                return;
+            }
+            if (arrival instanceof MP3Chunk && ((MP3Chunk) arrival).getPartNo() == progress.nextToDeliver) {
+                progress.deliver((MP3Chunk) arrival, listener);
+            }
+            // granted in batches of half the window to keep the credit frames few
+            if (++consumed >= (window + 1) / 2) {
+                subscription.request(consumed);
+                consumed = 0;
+            }
+        }
+    }
+
+    private void fetchWindowed(NodeInfo broker, SongInfo songInfo, Listener listener, Progress progress)
+            throws IOException, InterruptedException {
+        int partsTotal = songInfo.getPartsTotal();
+        BlockingQueue<Completion> completions = new LinkedBlockingQueue<>();
+        Map<Integer, MP3Chunk> outOfOrder = new HashMap<>();
+        int nextToRequest = progress.nextToDeliver;
+        int inFlight = 0;
+
+        while (progress.nextToDeliver < partsTotal) {
+            while (inFlight < window && nextToRequest < partsTotal) {
+                if (progress.isStored(nextToRequest)) {
+                    nextToRequest++;
+                    continue;
+                }
+                request(broker, songInfo, nextToRequest++, completions);
+                inFlight++;
+            }
+            if (inFlight == 0) {
+                // skipped as stored, but the store lost it since
+                request(broker, songInfo, progress.nextToDeliver, completions);
+                inFlight++;
+            }
+
+            Completion completion = completions.take();
+            inFlight--;
+            int partNo = completion.partNo;
+            if (!(completion.response instanceof MP3Chunk)) {
+                // the retry policy has given up on it already
+                Throwable error = (Throwable) completion.response;
+                Throwable cause = error.getCause() != null ? error.getCause() : error;
+                throw new IOException("Part " + partNo + " of " + songInfo.getSongTitle() + " : " + cause.getMessage());
+            }
+
+            outOfOrder.put(partNo, (MP3Chunk) completion.response);
+            MP3Chunk chunk;
+            while ((chunk = outOfOrder.remove(progress.nextToDeliver)) != null) {
+                progress.deliver(chunk, listener);
+            }
+        }
+    }
+
+    // retried with the backoff and within the deadline of the retry policy, so an overloaded broker is not hammered
+    private void request(NodeInfo broker, SongInfo songInfo, int partNo, BlockingQueue<Completion> completions) {
+        connectionPool.call(broker.getIp(), broker.getPort(), new ChunkRequest(songInfo, partNo), retryPolicy,
+                        response -> response instanceof MP3Chunk)
+                .whenComplete((response, error) -> completions.add(new Completion(partNo, error != null ? error : response)));
+    }
+
+    private static class Progress {
+        private final long start = System.nanoTime();
+        private final SongInfo songInfo;
+        private final ChunkStore store;
+        private long firstChunk = -1;
+        private int nextToDeliver;
+        private int stored;
+        private long bytes;
+
+        Progress(SongInfo songInfo, ChunkStore store) {
+            this.songInfo = songInfo;
+            this.store = store;
+        }
+
+        // a part that came over the network, which names its song by id only
+        void deliver(MP3Chunk chunk, Listener listener) {
+            chunk.setSongInfo(songInfo);
+            if (store != null) store.put(chunk);
+            handOver(chunk, listener);
+            deliverStored(listener);
+        }
+
+        // the parts from nextToDeliver on that the store already has
+        void deliverStored(Listener listener) {
+            if (store == null) return;
+            MP3Chunk chunk;
+            while (nextToDeliver < songInfo.getPartsTotal() && (chunk = store.get(songInfo, nextToDeliver)) != null) {
+                stored++;
+                handOver(chunk, listener);
+            }
+        }
+
+        boolean isStored(int partNo) {
+            return store != null && (partNo < nextToDeliver || store.contains(songInfo, partNo));
+        }
+
+        private void handOver(MP3Chunk chunk, Listener listener) {
+            if (firstChunk < 0) firstChunk = System.nanoTime();
+            bytes += chunk.getSize();
+            listener.onChunk(chunk);
+            nextToDeliver++;
+        }
+
+        Stats toStats(int parts) {
+            return new Stats(parts, stored, bytes, firstChunk < 0 ? 0 : firstChunk - start, System.nanoTime() - start);
+        }
+    }
+
+    private static class Completion {
+        private final int partNo;
+        private final Object response;
+
+        Completion(int partNo, Object response) {
+            this.partNo = partNo;
+            this.response = response;
+        }
+    }
+
+    public static class Stats {
+        private final int parts;
+        private final int storedParts;
+        private final long bytes;
+        private final long timeToFirstChunkNanos;
+        private final long totalNanos;
+
+        Stats(int parts, int storedParts, long bytes, long timeToFirstChunkNanos, long totalNanos) {
+            this.parts = parts;
+            this.storedParts = storedParts;
+            this.bytes = bytes;
+            this.timeToFirstChunkNanos = timeToFirstChunkNanos;
+            this.totalNanos = totalNanos;
+        }
+
+        public int getParts() {
+            return parts;
+        }
+
+        // parts that came from the local chunk store instead of the network
+        public int getStoredParts() {
+            return storedParts;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getTimeToFirstChunkNanos() {
+            return timeToFirstChunkNanos;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public double getBytesPerSecond() {
+            return totalNanos == 0 ? 0 : bytes * 1e9 / totalNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d parts (%d stored), %d bytes, first chunk after %.1f ms, done in %.1f ms (%.2f MB/s)",
+                    parts, storedParts, bytes, timeToFirstChunkNanos / 1e6, totalNanos / 1e6, getBytesPerSecond() / (1024 * 1024));
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package consumer;
+
+import shared.ChunkSizing;
+import shared.MP3Chunk;
+import shared.SongInfo;
+import util.Log;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Parts of songs this consumer has downloaded, kept on disk within {@code maxBytes}. Every song is one sparse
+ * file named after its song id, written with positional writes, next to a bitmap of the 64 KB blocks already
+ * in it. Parts of any chunk size can be looked up in it, so a replay needs no network and an interrupted
+ * download resumes at the first missing part. The songs used least recently are deleted first once the
+ * budget is exceeded.
+ */
+public class ChunkStore {
+
+    private static final int BLOCK_SIZE = ChunkSizing.MIN_CHUNK_SIZE;
+    private static final String DATA_SUFFIX = ".song";
+    private static final String BLOCKS_SUFFIX = ".blocks";
+
+    private final Path directory;
+    private final long maxBytes;
+    // access ordered, the eldest entry is the song used least recently
+    private final LinkedHashMap<String, Entry> songs = new LinkedHashMap<>(16, 0.75f, true);
+    private long usedBytes;
+
+    public ChunkStore(Path directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(directory);
+        load();
+    }
+
+    public MP3Chunk get(SongInfo song, int partNo) {
+        String id = idOf(song);
+        long from = ChunkSizing.offsetOf(partNo, song.getChunkSize());
+        int length = lengthOf(song, partNo);
+        if (length <= 0) return null;
+        synchronized (this) {
+            Entry entry = songs.get(id);
+            if (entry == null || !entry.covers(from, length)) return null;
+            ByteBuffer bytes = ByteBuffer.allocate(length);
+            try (FileChannel channel = FileChannel.open(dataPath(id), StandardOpenOption.READ)) {
+                while (bytes.hasRemaining()) {
+                    if (channel.read(bytes, from + bytes.position()) < 0) return null;
+                }
+            } catch (IOException e) {
+                Log.warn("Could not read " + song.getSongTitle() + " part " + partNo + " from the chunk store : " + e.getMessage());
+                return null;
+            }
+            return new MP3Chunk(song, partNo, bytes.array());
+        }
+    }
+
+    public synchronized boolean contains(SongInfo song, int partNo) {
+        Entry entry = songs.get(idOf(song));
+        int length = lengthOf(song, partNo);
+        return entry != null && length > 0 && entry.covers(ChunkSizing.offsetOf(partNo, song.getChunkSize()), length);
+    }
+
+    public synchronized void put(MP3Chunk chunk) {
+        SongInfo song = chunk.getSongInfo();
+        if (song.getFileSize() > maxBytes) return;
+        String id = idOf(song);
+        long from = ChunkSizing.offsetOf(chunk.getPartNo(), song.getChunkSize());
+        int length = chunk.getSize();
+        if (length != lengthOf(song, chunk.getPartNo())) return;
+        Entry entry = songs.computeIfAbsent(id, k -> new Entry(song.getFileSize()));
+        if (entry.covers(from, length)) return;
+        try {
+            try (FileChannel channel = FileChannel.open(dataPath(id), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                ByteBuffer payload = chunk.getPayload();
+                while (payload.hasRemaining()) {
+                    channel.write(payload, from + length - payload.remaining());
+                }
+            }
+            long before = entry.getBytes();
+            entry.mark(from, length);
+            usedBytes += entry.getBytes() - before;
+            // written after the data, so a block is never marked before its bytes are there
+            writeBlocks(id, entry);
+        } catch (IOException e) {
+            Log.warn("Could not store " + song.getSongTitle() + " part " + chunk.getPartNo() + " : " + e.getMessage());
+            return;
+        }
+        evict(id);
+    }
+
+    private void evict(String keep) {
+        Iterator<Map.Entry<String, Entry>> eldest = songs.entrySet().iterator();
+        while (usedBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, Entry> song = eldest.next();
+            if (song.getKey().equals(keep)) continue;
+            eldest.remove();
+            usedBytes -= song.getValue().getBytes();
+            try {
+                Files.deleteIfExists(blocksPath(song.getKey()));
+                Files.deleteIfExists(dataPath(song.getKey()));
+            } catch (IOException e) {
+                Log.warn("Could not delete " + song.getKey() + " from the chunk store : " + e.getMessage());
+            }
+        }
+    }
+
+    // songs in the order they were last written, so the least recently used are evicted first after a restart too
+    private void load() throws IOException {
+        List<Path> blockFiles;
+        try (Stream<Path> files = Files.list(directory)) {
+            blockFiles = files.filter(path -> path.getFileName().toString().endsWith(BLOCKS_SUFFIX))
+                    .sorted(Comparator.comparing(ChunkStore::lastModified))
+                    .collect(Collectors.toList());
+        }
+        for (Path path : blockFiles) {
+            String name = path.getFileName().toString();
+            String id = name.substring(0, name.length() - BLOCKS_SUFFIX.length());
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+                Entry entry = new Entry(in.readLong());
+                entry.blocks.or(BitSet.valueOf(in.readAllBytes()));
+                songs.put(id, entry);
+                usedBytes += entry.getBytes();
+            } catch (IOException e) {
+                Log.warn("Ignoring unreadable chunk store entry " + path + " : " + e.getMessage());
+            }
+        }
+        evict(null);
+    }
+
+    private void writeBlocks(String id, Entry entry) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(blocksPath(id))))) {
+            out.writeLong(entry.fileSize);
+            out.write(entry.blocks.toByteArray());
+        }
+    }
+
+    private static int lengthOf(SongInfo song, int partNo) {
+        long from = ChunkSizing.offsetOf(partNo, song.getChunkSize());
+        if (partNo < 0 || from >= song.getFileSize()) return 0;
+        return (int) Math.min(song.getChunkSize(), song.getFileSize() - from);
+    }
+
+    // the song id, which says what the song is, not where a publisher keeps it or how it is cut into parts
+    static String idOf(SongInfo song) {
+        return String.format("%016x", song.getSongId());
+    }
+
+    private Path dataPath(String id) {
+        return directory.resolve(id + DATA_SUFFIX);
+    }
+
+    private Path blocksPath(String id) {
+        return directory.resolve(id + BLOCKS_SUFFIX);
+    }
+
+    private static long lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public synchronized int getSongs() {
+        return songs.size();
+    }
+
+    @Override
+    public String toString() {
+        return "ChunkStore{" +
+                directory +
+                ", songs=" + getSongs() +
+                ", bytes=" + getUsedBytes() + "/" + maxBytes +
+                '}';
+    }
+
+    private static class Entry {
+        private final long fileSize;
+        private final BitSet blocks = new BitSet();
+
+        Entry(long fileSize) {
+            this.fileSize = fileSize;
+        }
+
+        boolean covers(long from, int length) {
+            int first = (int) (from / BLOCK_SIZE);
+            int end = (int) ((from + length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+            int missing = blocks.nextClearBit(first);
+            return missing >= end;
+        }
+
+        void mark(long from, int length) {
+            blocks.set((int) (from / BLOCK_SIZE), (int) ((from + length + BLOCK_SIZE - 1) / BLOCK_SIZE));
+        }
+
+        // what the blocks take on disk, the last one of the file counted whole
+        long getBytes() {
+            return (long) blocks.cardinality() * BLOCK_SIZE;
+        }
+    }
+}
@@ -1,29 +1,54 @@
 package consumer;
 
 import shared.*;
+import util.ConnectionPool;
+import util.Log;
+import util.MetricsRegistry;
+import util.RetryPolicy;
 
 import java.io.*;
-import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.net.SocketAddress;
-import java.net.SocketTimeoutException;
+import java.nio.file.Paths;
 import java.util.*;
-import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 
 public class Consumer {
 
     private Map<NodeInfo, List<ArtistName>> brokerData;
+    private volatile RoutingTable brokerRoutes = RoutingTable.EMPTY;
+    private final ArtistDirectory brokerDirectory = new ArtistDirectory();
     private List<NodeInfo> brokers;
-    public static String knownBrokerIp = "localhost";
-    public static int knownBrokerPort = 6000;
+    private final NodeInfo knownBroker;
+    private final ConnectionPool connectionPool = new ConnectionPool(new MetricsRegistry("consumer"));
+    private final RetryPolicy retryPolicy = RetryPolicy.fromSystemProperties();
+    // parts kept in flight per download with -Dconsumer.window, -Dconsumer.subscribe=false to fetch part by part only;
+    // a part is retried like any other call, as -Dclient.retry.* says
+    private final ChunkDownloader chunkDownloader = new ChunkDownloader(connectionPool,
+            Integer.getInteger("consumer.window", 8), retryPolicy,
+            Boolean.parseBoolean(System.getProperty("consumer.subscribe", "true")));
+    // -Dconsumer.chunk.negotiate=true asks for parts sized to the throughput of the earlier downloads
+    private final boolean negotiateChunkSize = Boolean.getBoolean("consumer.chunk.negotiate");
+    private volatile double measuredThroughput;
 
 
     static Consumer thisConsumer;
 
+    public Consumer() {
+        this(ClusterConfig.knownBroker());
+    }
+
+    public Consumer(NodeInfo knownBroker) {
+        this.knownBroker = knownBroker;
+    }
+
     public static void main(String[] args) {
         thisConsumer = new Consumer();
-        thisConsumer.registerToBroker();
+        thisConsumer.openChunkStore();
+        if (!thisConsumer.registerToBroker()) {
+            System.out.println("Could not reach broker " + thisConsumer.knownBroker);
+            return;
+        }
         //get the localhost IP address, if server is running on some other IP, you need to use that
         try {
 
@@ -31,21 +56,25 @@ public class Consumer {
 
                 BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
                 System.out.println("Please Enter an Artist name :");
-                Map<NodeInfo, ArtistName> brokerArtistNameMap;
+                RoutingTable.Route brokerRoute;
 
                 // user first picks an artist
                 do {
                     String requestedArtist = br.readLine();
-                    brokerArtistNameMap = thisConsumer.findCorrectBrokerByArtistName(requestedArtist);
-                    if (brokerArtistNameMap == null) {
+                    brokerRoute = thisConsumer.findCorrectBrokerByArtistName(requestedArtist);
+                    // the artist may be new since the last time this consumer asked
+                    if (brokerRoute == null && thisConsumer.refreshBrokerData()) {
+                        brokerRoute = thisConsumer.findCorrectBrokerByArtistName(requestedArtist);
+                    }
+                    if (brokerRoute == null) {
                         System.out.println("The requested artist wasn't found in the database");
                         System.out.println("Please enter another Artist name :");
                     }
-                } while (brokerArtistNameMap == null);
+                } while (brokerRoute == null);
 
 
-                NodeInfo broker = brokerArtistNameMap.keySet().iterator().next();
-                ArtistName artist = brokerArtistNameMap.get(broker);
+                NodeInfo broker = brokerRoute.getNode();
+                ArtistName artist = brokerRoute.getArtistName();
                 List<SongInfo> songInfoList = thisConsumer.requestArtist(broker, artist);
                 if (songInfoList != null && !songInfoList.isEmpty()) {
                     System.out.println("The artist's songs are : ");
@@ -56,6 +85,8 @@ public class Consumer {
                     }
                 } else {
                     System.out.println("Error when getting the songs of the artist");
+                    // the broker may be down, in which case the routes now point the artist somewhere else
+                    thisConsumer.refreshBrokerData();
                     continue;
                 }
 
@@ -71,94 +102,123 @@ public class Consumer {
 
                 // request chunks
                 System.out.println("Ask broker: " + broker.getIp() + ":" + broker.getPort() + " for " + songInfo.getSongTitle());
-                for (int i = 0; i < songInfo.getPartsTotal(); i++) {
-                    ChunkRequest chunkRequest = new ChunkRequest(songInfo, i);
-                    MP3Chunk mp3Chunk = (MP3Chunk) thisConsumer.sendDataToServer(broker.getIp(), broker.getPort(), chunkRequest);
-                    System.out.println("Got chunk of requested song : " + mp3Chunk);
+                try {
+                    ChunkDownloader.Stats stats = thisConsumer.download(broker, songInfo,
+                            mp3Chunk -> System.out.println("Got chunk of requested song : " + mp3Chunk));
+                    System.out.println("Downloaded " + songInfo.getSongTitle() + " : " + stats);
+                } catch (IOException e) {
+                    System.out.println("Download of " + songInfo.getSongTitle() + " failed : " + e.getMessage());
                 }
 
             }
 
         } catch (IOException e) {
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
 
 
     }
 
 
-    public void registerToBroker() {
-        boolean dataReceived = true;
-        while (dataReceived) {
-            System.out.println("Trying to connect to server...");
-            setBrokerData((Map<NodeInfo, List<ArtistName>>) sendDataToServer(knownBrokerIp, knownBrokerPort, "Show me the money"));
-//            System.out.println("Broker data got from master broker : " + getBrokerData());
-            if (getBrokerData().size() > 0) {
-                System.out.println(getBrokerData().size());
-                List<NodeInfo> brokers = new ArrayList<>();
-                for (NodeInfo broker : getBrokerData().keySet()) {
-                    brokers.add(broker);
-                }
-                setBrokers(brokers);
-                dataReceived = false;
-            }
-        }
+    // waits for the broker map; false once the retries of -Dclient.retry.* are used up
+    public boolean registerToBroker() {
+        Log.info("Registering at broker " + knownBroker);
+        CompletableFuture<Object> registration = retryPolicy.call(
+                () -> connectionPool.send(knownBroker.getIp(), knownBroker.getPort(), brokerDataRequest()),
+                response -> {
+                    applyBrokerData(response);
+                    return getBrokerData() != null && !getBrokerData().isEmpty();
+                }, "Registration at " + knownBroker);
+        if (await(registration) == null) return false;
+        Log.info("Registered, " + getBrokerData().size() + " brokers");
+        setBrokers(new ArrayList<>(getBrokerData().keySet()));
+        return true;
+    }
+
+    // pulls only what changed since the version this consumer has; true if anything did
+    public boolean refreshBrokerData() {
+        return applyBrokerData(sendDataToServer(knownBroker.getIp(), knownBroker.getPort(), brokerDataRequest()));
+    }
+
+    private MetadataRequest brokerDataRequest() {
+        return new MetadataRequest(MetadataRequest.Routes.BROKERS, brokerDirectory.getEpoch(), brokerDirectory.getVersion());
+    }
 
+    private synchronized boolean applyBrokerData(Object response) {
+        long epoch = brokerDirectory.getEpoch();
+        long version = brokerDirectory.getVersion();
+        if (!(response instanceof MetadataDelta) || !brokerDirectory.apply((MetadataDelta) response)) return false;
+        if (brokerDirectory.getEpoch() == epoch && brokerDirectory.getVersion() == version) return false;
+        setBrokerData(brokerDirectory.toNodeMap());
+        return true;
     }
 
+    // null once the retries are used up, e.g. because the broker has not heard of the artist yet
     public List<SongInfo> requestArtist(NodeInfo broker, ArtistName artistName) {
-        while (true) {
-            System.out.println("Ask broker: " + broker.getIp() + ":" + broker.getPort() + " for " + artistName.getArtistName());
-            List<SongInfo> songInfoList = (List<SongInfo>) sendDataToServer(broker.getIp(), broker.getPort(), artistName);
-            if (songInfoList != null)
-                return songInfoList;
+        Log.debug(() -> "Ask broker: " + broker.getIp() + ":" + broker.getPort() + " for " + artistName.getArtistName());
+        Object songs = await(connectionPool.call(broker.getIp(), broker.getPort(), artistName, retryPolicy,
+                Consumer::isSongList));
+        if (songs == null) return null;
+        List<SongInfo> songInfos = new ArrayList<>();
+        for (Object song : (List<?>) songs) {
+            songInfos.add((SongInfo) song);
         }
+        return songInfos;
     }
 
-    public Map<NodeInfo, ArtistName> findCorrectBrokerByArtistName(String artistNameName) {
-        Map<NodeInfo, ArtistName> result = new HashMap<>();
-        Set<Entry<NodeInfo, List<ArtistName>>> entrySet = getBrokerData().entrySet();
-        for (Entry entry : entrySet) {
-            for (ArtistName artistName : (List<ArtistName>) entry.getValue()) {
-                if (artistNameName.equals(artistName.getArtistName())) {
-                    result.put((NodeInfo) entry.getKey(), artistName);
-                    return result;
-                }
-            }
+    private static boolean isSongList(Object response) {
+        return response instanceof List && ((List<?>) response).stream().allMatch(song -> song instanceof SongInfo);
+    }
+
+    // the answer, or null if the call gave up; an interrupt cancels the call
+    private static Object await(CompletableFuture<Object> call) {
+        try {
+            return call.get();
+        } catch (ExecutionException e) {
+            Log.warn(e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            call.cancel(false);
+            Thread.currentThread().interrupt();
         }
         return null;
     }
 
-
-    public Object sendDataToServer(String hostName, int port, Object data) {
-
-        SocketAddress socketAddress = new InetSocketAddress(hostName, port);
-        Socket socket = new Socket();
-        Object response = new Object();
+    // -Dconsumer.store.dir (chunk-store) within -Dconsumer.store.bytes (1 GB), 0 bytes for no store
+    public void openChunkStore() {
+        long maxBytes = Long.getLong("consumer.store.bytes", 1L << 30);
+        if (maxBytes <= 0) return;
         try {
-            socket.connect(socketAddress, 2000);
-            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-            System.out.println("Server wrote output data : " + data);
-            out.writeObject(data);
-            out.flush();
-            ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-            response = in.readObject();
-            System.out.println("Server read input data : " + response);
-            out.close();
-            in.close();
-            socket.close();
-
-        } catch (SocketTimeoutException exception) {
-            System.out.println("SocketTimeoutException " + hostName + ":" + port + ". " + exception.getMessage());
-        } catch (IOException exception) {
-            System.out.println(
-                    "IOException - Unable to connect to " + hostName + ":" + port + ". " + exception.getMessage());
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
+            chunkDownloader.setStore(new ChunkStore(Paths.get(System.getProperty("consumer.store.dir", "chunk-store")), maxBytes));
+        } catch (IOException e) {
+            Log.warn("Downloading without a chunk store : " + e.getMessage());
+        }
+    }
+
+    public ChunkDownloader.Stats download(NodeInfo broker, SongInfo songInfo, ChunkDownloader.Listener listener)
+            throws IOException, InterruptedException {
+        double throughput = measuredThroughput;
+        SongInfo requested = songInfo;
+        if (negotiateChunkSize && throughput > 0) {
+            requested = songInfo.withChunkSize(ChunkSizing.forThroughput(throughput, songInfo.getFileSize()));
         }
+        ChunkDownloader.Stats stats = chunkDownloader.download(broker, requested, listener);
+        // smoothed, so one slow download does not throw the next chunk size off
+        measuredThroughput = throughput > 0 ? 0.7 * throughput + 0.3 * stats.getBytesPerSecond() : stats.getBytesPerSecond();
+        return stats;
+    }
+
+    public RoutingTable.Route findCorrectBrokerByArtistName(String artistNameName) {
+        return brokerRoutes.lookup(artistNameName);
+    }
 
-        return response;
 
+    public Object sendDataToServer(String hostName, int port, Object data) {
+        Log.debug(() -> "Server wrote output data : " + data);
+        Object response = connectionPool.request(hostName, port, data);
+        Log.debug(() -> "Server read input data : " + response);
+        return response;
     }
 
 
@@ -167,6 +227,7 @@ public class Consumer {
     }
 
     public void setBrokerData(Map<NodeInfo, List<ArtistName>> brokerData) {
+        this.brokerRoutes = RoutingTable.of(brokerData);
         this.brokerData = brokerData;
     }
 
@@ -0,0 +1,95 @@
+package publisher;
+
+import shared.ArtistName;
+import shared.SongInfo;
+import util.Log;
+
+import java.util.*;
+
+/**
+ * Immutable index over the songs a publisher can serve, built once at startup and shared by every
+ * request handler without locking. Chunk requests find their song by its id.
+ */
+public final class Catalog {
+
+    private final Map<ArtistName, List<SongInfo>> songsByArtist;
+    private final Map<Long, Entry> entriesById;
+    // what the songs of every artist take, which is what a publisher weighs when artists are shared out
+    private final Map<ArtistName, Long> bytesByArtist;
+
+    private Catalog(Map<ArtistName, List<SongInfo>> songsByArtist, Map<Long, Entry> entriesById,
+                    Map<ArtistName, Long> bytesByArtist) {
+        this.songsByArtist = songsByArtist;
+        this.entriesById = entriesById;
+        this.bytesByArtist = bytesByArtist;
+    }
+
+    public static Catalog build(Map<ArtistName, List<SongInfo>> songData) {
+        Map<ArtistName, List<SongInfo>> songsByArtist = new HashMap<>();
+        Map<Long, Entry> entriesById = new HashMap<>();
+        Map<ArtistName, Long> bytesByArtist = new HashMap<>();
+        for (Map.Entry<ArtistName, List<SongInfo>> artistSongs : songData.entrySet()) {
+            List<SongInfo> songs = new ArrayList<>();
+            for (SongInfo songInfo : artistSongs.getValue()) {
+                // the same song twice, or two songs whose ids collide: the first one found is served
+                Entry existing = entriesById.putIfAbsent(songInfo.getSongId(), new Entry(songInfo, songInfo.getFileSize()));
+                if (existing != null) {
+                    Log.warn("Song id " + Long.toHexString(songInfo.getSongId()) + " of " + songInfo.getSongPath()
+                            + " is taken by " + existing.getPath() + ", skipping it");
+                    continue;
+                }
+                songs.add(songInfo);
+                bytesByArtist.merge(artistSongs.getKey(), songInfo.getFileSize(), Long::sum);
+            }
+            songsByArtist.put(artistSongs.getKey(), List.copyOf(songs));
+        }
+        return new Catalog(Collections.unmodifiableMap(songsByArtist), Collections.unmodifiableMap(entriesById),
+                Collections.unmodifiableMap(bytesByArtist));
+    }
+
+    public List<SongInfo> getSongsOfArtist(ArtistName artistName) {
+        return songsByArtist.get(artistName);
+    }
+
+    public Set<ArtistName> getArtists() {
+        return songsByArtist.keySet();
+    }
+
+    public long getArtistBytes(ArtistName artistName) {
+        return bytesByArtist.getOrDefault(artistName, 0L);
+    }
+
+    public Entry getEntry(long songId) {
+        return entriesById.get(songId);
+    }
+
+    public int getSongCount() {
+        return entriesById.size();
+    }
+
+    public static final class Entry {
+        private final SongInfo songInfo;
+        private final long fileSize;
+
+        Entry(SongInfo songInfo, long fileSize) {
+            this.songInfo = songInfo;
+            this.fileSize = fileSize;
+        }
+
+        public SongInfo getSongInfo() {
+            return songInfo;
+        }
+
+        public String getPath() {
+            return songInfo.getSongPath();
+        }
+
+        public long getFileSize() {
+            return fileSize;
+        }
+
+        public int getPartsTotal() {
+            return songInfo.getPartsTotal();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package publisher;
+
+import shared.MP3Chunk;
+import shared.SongInfo;
+import util.ResponseStream;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * One range of a song streamed to a broker without holding a worker while the broker has no credit:
+ * {@link #pump} sends what the credit allows and returns, and runs again on {@code executor} whenever the
+ * broker grants more. Completes the response with the number of parts sent.
+ */
+class ChunkRangeStream {
+
+    private final MappedFileCache files;
+    private final SongInfo songInfo;
+    private final ResponseStream stream;
+    private final int toPart;
+    private final Executor executor;
+    private final Consumer<MP3Chunk> onSent;
+    private final CompletableFuture<Integer> done = new CompletableFuture<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private int nextPart;
+    private int sent;
+    // nextPart once it is read, until the broker has credit for it
+    private MP3Chunk ready;
+
+    ChunkRangeStream(MappedFileCache files, SongInfo songInfo, ResponseStream stream, int fromPart, int toPart,
+                     Executor executor, Consumer<MP3Chunk> onSent) {
+        this.files = files;
+        this.songInfo = songInfo;
+        this.stream = stream;
+        this.nextPart = fromPart;
+        this.toPart = toPart;
+        this.executor = executor;
+        this.onSent = onSent;
+    }
+
+    // called by the handler, which returns right after
+    void start() throws IOException {
+        stream.onCredit(this::schedule);
+        pump();
+        stream.completeWith(done);
+    }
+
+    // credit arrives on the connection's reader, which must not write the chunks itself
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            executor.execute(() -> {
+                scheduled.set(false);
+                pump();
+            });
+        }
+    }
+
+    private synchronized void pump() {
+        if (done.isDone()) return;
+        try {
+            while (nextPart <= toPart) {
+                if (ready == null) ready = files.readChunk(songInfo, nextPart);
+                if (ready == null) break;
+                if (!stream.tryNext(ready)) return;
+                onSent.accept(ready);
+                ready = null;
+                sent++;
+                nextPart++;
+            }
+        } catch (IOException e) {
+            // the broker cancelled or went away
+        }
+        done.complete(sent);
+    }
+}
@@ -0,0 +1,114 @@
+package publisher;
+
+import shared.ChunkSizing;
+import shared.MP3Chunk;
+import shared.SongInfo;
+import util.Log;
+import util.MusicTools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Memory mappings of the songs read most recently, at most {@code maxFiles} of them, the least recently
+ * read one dropped first. Chunks of a mapped song are slices of its mapping: serving them copies nothing
+ * onto the heap and repeat reads come straight from the page cache. A dropped mapping is unmapped once the
+ * last chunk sliced from it is gone.
+ */
+class MappedFileCache {
+
+    private final int maxFiles;
+    // access ordered, the eldest entry is the least recently read song
+    private final LinkedHashMap<String, MappedByteBuffer> mappings = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, MappedByteBuffer> eldest) {
+            if (size() <= maxFiles) return false;
+            evictions.incrementAndGet();
+            return true;
+        }
+    };
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    MappedFileCache(int maxFiles) {
+        this.maxFiles = maxFiles;
+    }
+
+    // songs that cannot be mapped are read the plain way
+    MP3Chunk readChunk(SongInfo song, int partNo) {
+        if (maxFiles <= 0) return MusicTools.readChunk(song, partNo);
+        ByteBuffer mapping = mappingOf(song);
+        if (mapping == null) return MusicTools.readChunk(song, partNo);
+
+        long from = ChunkSizing.offsetOf(partNo, song.getChunkSize());
+        if (partNo < 0 || from >= mapping.capacity()) return null;
+        int length = (int) Math.min(song.getChunkSize(), mapping.capacity() - from);
+        ByteBuffer slice = mapping.duplicate();
+        slice.position((int) from).limit((int) from + length);
+        return new MP3Chunk(song, partNo, slice.slice());
+    }
+
+    private ByteBuffer mappingOf(SongInfo song) {
+        String path = song.getSongPath();
+        MappedByteBuffer mapping;
+        synchronized (this) {
+            mapping = mappings.get(path);
+        }
+        if (mapping != null) {
+            hits.incrementAndGet();
+            return mapping;
+        }
+        misses.incrementAndGet();
+        if (song.getFileSize() > Integer.MAX_VALUE) return null;
+        // mapped outside the lock, a race only maps the file twice
+        try (FileChannel channel = FileChannel.open(Path.of(path), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) return null;
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            return null;
+        }
+        // parts are still cut by the catalog's size, those past the end of the file simply are not there
+        if (mapping.capacity() != song.getFileSize()) {
+            Log.warn(path + " is " + mapping.capacity() + " bytes, the catalog has it at " + song.getFileSize());
+        }
+        synchronized (this) {
+            mappings.put(path, mapping);
+        }
+        return mapping;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized int getFiles() {
+        return mappings.size();
+    }
+
+    @Override
+    public String toString() {
+        return "MappedFileCache{" +
+                "hits=" + getHits() +
+                ", misses=" + getMisses() +
+                ", evictions=" + getEvictions() +
+                ", files=" + getFiles() + "/" + maxFiles +
+                '}';
+    }
+}
@@ -1,40 +1,73 @@
 package publisher;
 
+import shared.ArtistDirectory;
 import shared.ArtistName;
+import shared.ChunkRangeRequest;
 import shared.ChunkRequest;
+import shared.ClusterConfig;
+import shared.Heartbeat;
+import shared.MP3Chunk;
 import shared.NodeInfo;
+import shared.PublisherReport;
 import shared.SongInfo;
+import util.ConnectionPool;
+import util.Log;
+import util.MetricsRegistry;
 import util.MusicTools;
+import util.RequestHandler;
+import util.ResponseStream;
+import util.RetryPolicy;
+import util.Server;
+import util.ServerMode;
+import util.SocketServer;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.*;
+import java.net.ServerSocket;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 
-public class Publisher {
+public class Publisher implements RequestHandler {
 
-    private Map<NodeInfo, List<ArtistName>> brokerData;
-    private final String[] publisherIps = {"localhost", "localhost"};
-    public final int[] publisherPorts = {7000, 7001};
+    private volatile Map<NodeInfo, List<ArtistName>> brokerData;
     private int publisherNo = -1;
-    private List<ArtistName> allArtists = new ArrayList<>();
-    private List<NodeInfo> publishers = new ArrayList<>();
-    private List<NodeInfo> brokers;
-    public static String knownBrokerIp = "localhost";
-    public static int knownBrokerPort = 6000;
-
-    public static int CHUNK_SIZE = 512000;
+    private Catalog catalog;
+    private final List<NodeInfo> publishers;
+    private final NodeInfo knownBroker;
+    private Path libraryPath = MusicTools.LIBRARY_PATH;
+    private Path manifestPath = MusicTools.MANIFEST_PATH;
+    private volatile List<NodeInfo> brokers;
+    private ServerMode serverMode = ServerMode.SERIAL;
+    private int poolSize = SocketServer.DEFAULT_POOL_SIZE;
+    private final MetricsRegistry metrics;
+    private final ConnectionPool connectionPool;
+    private final RetryPolicy retryPolicy = RetryPolicy.fromSystemProperties();
+    // bytes served per artist since the last report
+    private final Map<String, LongAdder> servedBytes = new ConcurrentHashMap<>();
+    private ScheduledExecutorService reports;
+    // mappings of the most recently streamed songs, -Dpublisher.mmap.files=0 reads every chunk onto the heap
+    private final MappedFileCache mappedFiles = new MappedFileCache(Integer.getInteger("publisher.mmap.files", 64));
+    // where range streams carry on once the broker grants them more credit
+    private final ExecutorService rangeStreams = Executors.newCachedThreadPool(SocketServer.namedThreads("range"));
 
 
     static Publisher thisPublisher;
 
     public static void main(String[] arg) {
-        if (arg.length != 1) return;
+        if (arg.length < 1) return;
         int thisPublisherNo = Integer.parseInt(arg[0]);
 
         thisPublisher = new Publisher(thisPublisherNo);
+        if (arg.length > 1) thisPublisher.serverMode = ServerMode.fromString(arg[1]);
+        if (arg.length > 2) thisPublisher.poolSize = Integer.parseInt(arg[2]);
         thisPublisher.init();
 
         thisPublisher.connectToBroker();
@@ -44,67 +77,66 @@ public class Publisher {
 
 
     public Publisher(int publisherNo) {
+        this(publisherNo, ClusterConfig.publishers(), ClusterConfig.knownBroker());
+    }
+
+    public Publisher(int publisherNo, List<NodeInfo> publishers, NodeInfo knownBroker) {
         this.publisherNo = publisherNo;
+        this.publishers = publishers;
+        this.knownBroker = knownBroker;
+        this.metrics = new MetricsRegistry("Pub" + publisherNo);
+        this.connectionPool = new ConnectionPool(metrics);
+        metrics.gauge("mmap.hits", mappedFiles::getHits);
+        metrics.gauge("mmap.misses", mappedFiles::getMisses);
+        metrics.gauge("mmap.evictions", mappedFiles::getEvictions);
+        metrics.gauge("mmap.files", mappedFiles::getFiles);
     }
 
     public void init() {
-        for (int i = 0; i < publisherIps.length; i++) {
-            NodeInfo publisher = new NodeInfo(publisherIps[i], publisherPorts[i], i);
-            publishers.add(publisher);
-        }
+        catalog = Catalog.build(MusicTools.loadSongs(libraryPath, manifestPath));
+        Log.info("Catalog loaded with " + catalog.getSongCount() + " songs");
     }
 
 
-    public Map<NodeInfo, List<ArtistName>> createAllPublisherData(List<NodeInfo> publishers) {
-        Map<NodeInfo, List<ArtistName>> data = new HashMap<>();
-        Map<ArtistName, List<SongInfo>> songData = MusicTools.loadSongs();
-
-        Set<ArtistName> artistNameSet = songData.keySet();
-        for (ArtistName artistName : artistNameSet) {
-            getAllArtists().add(artistName);
+    // the artists this publisher can serve, with what their songs take and what was served of them since the last report
+    public PublisherReport createReport() {
+        Map<ArtistName, Long> catalogBytes = new HashMap<>();
+        for (ArtistName artistName : catalog.getArtists()) {
+            catalogBytes.put(artistName, catalog.getArtistBytes(artistName));
         }
-
-        Collections.sort(getAllArtists());
-//        System.out.println("All artists: " + getAllArtists() + " of total : " + getAllArtists().size());
-//        System.out.println("Publishers total: " + publishers.size());
-        List<List<ArtistName>> parts = new ArrayList<>(MusicTools.splitList(publishers.size(), getAllArtists()));
-        for (int i = 0; i < publishers.size(); i++) {
-            data.put(publishers.get(i), parts.get(i));
+        Map<ArtistName, Long> served = new HashMap<>();
+        for (Map.Entry<String, LongAdder> artist : servedBytes.entrySet()) {
+            long bytes = artist.getValue().sumThenReset();
+            if (bytes == 0) continue;
+            ArtistName artistName = new ArtistName();
+            artistName.setArtistName(artist.getKey());
+            served.put(artistName, bytes);
         }
-//        System.out.println("Partitioned publisher data map : " + data);
-        return data;
+        return new PublisherReport(publishers.get(publisherNo), catalogBytes, served);
     }
 
     public void startServer(int serverPort) {
-        ServerSocket serverSocket;
-        Socket clientSocket;
-        Object response;
-        try {
-            serverSocket = new ServerSocket(serverPort);
-            while (true) {
-                System.out.println("Server on port " + serverPort + " is waiting for a client.");
-                clientSocket = serverSocket.accept();
-                ObjectInputStream input = new ObjectInputStream(clientSocket.getInputStream());
-                ObjectOutputStream output = new ObjectOutputStream(clientSocket.getOutputStream());
-
-                Object inputObject = input.readObject();
-                response = processData(inputObject);
-
-                System.out.println("Processed some data " + response);
-                output.writeObject(response);
-                System.out.println("Written to output stream : " + response);
-                output.flush();
-                clientSocket.close();
+        createServer().start(serverPort);
+    }
+
+    public void startServer(ServerSocket serverSocket) {
+        createServer().start(serverSocket);
+    }
+
+    private Server createServer() {
+        metrics.registerMBean();
+        Integer metricsPort = Integer.getInteger("metrics.http.port");
+        if (metricsPort != null) {
+            try {
+                metrics.startHttp(metricsPort);
+            } catch (IOException e) {
+                Log.warn("Could not start metrics endpoint on port " + metricsPort + " : " + e.getMessage());
             }
-        } catch (IOException e) {
-            System.out.println("IOException: " + e.getMessage());
-            e.printStackTrace();
-        } catch (ClassNotFoundException e) {
-            System.out.println("ClassNotFoundException: " + serverPort);
         }
-
+        return Server.create(this, serverMode, poolSize, metrics);
     }
 
+    @Override
     public Object processData(Object data) {
 //        System.out.println("Publisher is processing some data...");
         Object result = new Object();
@@ -113,92 +145,148 @@ public class Publisher {
             result = processArtistDataFromBroker(((ArtistName) data));
         } else if (data instanceof ChunkRequest) {
             result = processChunkRequestFromBroker(((ChunkRequest) data));
+        } else if (data instanceof Heartbeat) {
+            result = processInline(data);
+        } else if ("Show me the metrics".equals(data)) {
+            result = metrics.toText();
         }
 //        System.out.println("Publisher processed some data " + data + " with result: " + result);
         return result;
     }
 
+    // brokers ping to tell whether this publisher is still there, the answer must not wait behind the streams
+    @Override
+    public Object processInline(Object data) {
+        if (!(data instanceof Heartbeat)) return null;
+        return new Heartbeat(publishers.get(publisherNo));
+    }
+
+    @Override
+    public void processStream(Object data, ResponseStream stream) throws IOException {
+        if (data instanceof ChunkRangeRequest) {
+            processChunkRangeRequestFromBroker((ChunkRangeRequest) data, stream);
+        } else {
+            stream.complete(processData(data));
+        }
+    }
+
+    // streams the parts as the broker grants credit and finishes with the number of parts sent; the worker
+    // returns right away, so even a SERIAL publisher keeps serving while a range waits for credit
+    private void processChunkRangeRequestFromBroker(ChunkRangeRequest rangeRequest, ResponseStream stream) throws IOException {
+        Catalog.Entry entry = catalog.getEntry(rangeRequest.getSongInfo().getSongId());
+        if (entry == null) {
+            stream.complete(null);
+            return;
+        }
+        SongInfo songInfo = cutAsRequested(entry, rangeRequest.getSongInfo());
+        int toPart = Math.min(rangeRequest.getToPart(), songInfo.getPartsTotal() - 1);
+        new ChunkRangeStream(mappedFiles, songInfo, stream, Math.max(0, rangeRequest.getFromPart()), toPart,
+                rangeStreams, this::served).start();
+    }
+
     private Object processArtistDataFromBroker(ArtistName artistName) {
-        Map<ArtistName, List<SongInfo>> songData = MusicTools.loadSongs();
-        return MusicTools.getSongsOfArtist(artistName, songData);
+        return catalog.getSongsOfArtist(artistName);
     }
 
     private Object processChunkRequestFromBroker(ChunkRequest chunkRequest) {
-        return MusicTools.splitSongToChunks(chunkRequest.getSongInfo(), CHUNK_SIZE).get(chunkRequest.getPartNo());
+        // only serve files that are part of the catalog, whatever path the request claims
+        Catalog.Entry entry = catalog.getEntry(chunkRequest.getSongInfo().getSongId());
+        if (entry == null) return null;
+        return served(mappedFiles.readChunk(cutAsRequested(entry, chunkRequest.getSongInfo()), chunkRequest.getPartNo()));
     }
 
+    private MP3Chunk served(MP3Chunk chunk) {
+        if (chunk != null) {
+            servedBytes.computeIfAbsent(chunk.getSongInfo().getArtistName(), k -> new LongAdder()).add(chunk.getSize());
+        }
+        return chunk;
+    }
+
+    // the catalog's song in parts of the size the consumer asked for, if it asked for one
+    private static SongInfo cutAsRequested(Catalog.Entry entry, SongInfo requested) {
+        if (requested.getChunkSize() <= 0) return entry.getSongInfo();
+        return entry.getSongInfo().withChunkSize(requested.getChunkSize());
+    }
 
-    void connectToBroker() {
-        Map<NodeInfo, List<ArtistName>> data = createAllPublisherData(getPublishers());
-        System.out.println("All data : " + data + " of total " + data.size());
-        System.out.println("Data of publisher " + getPublisherNo() + " : " + data.get(this));
 
-        boolean dataReceived = true;
-        while (dataReceived) {
-            System.out.println("Trying to connect to server...");
-            Map<NodeInfo, List<ArtistName>> brokerData = (Map<NodeInfo, List<ArtistName>>)
-                    sendDataToServer(knownBrokerIp, knownBrokerPort, data);
+    // joins through the known broker, then keeps reporting so the coordinator can move artists between publishers;
+    // if the broker cannot be reached within the retries of -Dclient.retry.*, the next report joins instead
+    public void connectToBroker() {
+        Log.info("Joining through broker " + knownBroker);
+        CompletableFuture<Object> registration = connectionPool.call(knownBroker.getIp(), knownBroker.getPort(),
+                createReport(), retryPolicy, Publisher::isBrokerData);
+        try {
+            Map<NodeInfo, List<ArtistName>> brokerData = ArtistDirectory.asNodeMap(registration.get());
             setBrokerData(brokerData);
-            if (getBrokerData().size() > 0) {
-                System.out.println(getBrokerData().size());
-                List<NodeInfo> brokers = new ArrayList<>();
-                for (NodeInfo broker : getBrokerData().keySet()) {
-                    brokers.add(broker);
-                }
-                setBrokers(brokers);
-                dataReceived = false;
-            }
+            Log.info("Joined, " + brokerData.size() + " brokers");
+            setBrokers(new ArrayList<>(brokerData.keySet()));
+        } catch (ExecutionException e) {
+            Log.warn(e.getCause().getMessage() + ", joining with the next report");
+        } catch (InterruptedException e) {
+            registration.cancel(false);
+            Thread.currentThread().interrupt();
+            return;
         }
-
+        synchronized (this) {
+            if (reports != null) return;
+            reports = Executors.newSingleThreadScheduledExecutor(SocketServer.namedThreads("report"));
+        }
+        long interval = Long.getLong("publisher.report.interval", 30000);
+        reports.scheduleWithFixedDelay(this::report, interval, interval, TimeUnit.MILLISECONDS);
     }
 
+    private void report() {
+        connectionPool.requestAsync(knownBroker.getIp(), knownBroker.getPort(), createReport()).thenAccept(response -> {
+            if (!isBrokerData(response)) return;
+            Map<NodeInfo, List<ArtistName>> brokerData = ArtistDirectory.asNodeMap(response);
+            setBrokerData(brokerData);
+            setBrokers(new ArrayList<>(brokerData.keySet()));
+        });
+    }
 
-    public Object sendDataToServer(String hostName, int port, Object data) {
+    private static boolean isBrokerData(Object response) {
+        Map<NodeInfo, List<ArtistName>> brokerData = ArtistDirectory.asNodeMap(response);
+        return brokerData != null && !brokerData.isEmpty();
+    }
 
-        SocketAddress socketAddress = new InetSocketAddress(hostName, port);
-        Socket socket = new Socket();
-        Object response = new Object();
-        try {
-            socket.connect(socketAddress, 2000);
-            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-            System.out.println("Server wrote output data : " + data);
-            out.writeObject(data);
-            out.flush();
-            ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-            response = in.readObject();
-            System.out.println("Server read input data : " + response);
-            out.close();
-            in.close();
-            socket.close();
-
-        } catch (SocketTimeoutException exception) {
-            System.out.println("SocketTimeoutException " + hostName + ":" + port + ". " + exception.getMessage());
-        } catch (IOException exception) {
-            System.out.println(
-                    "IOException - Unable to connect to " + hostName + ":" + port + ". " + exception.getMessage());
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
-        }
 
+    public Object sendDataToServer(String hostName, int port, Object data) {
+        Log.debug(() -> "Server wrote output data : " + data);
+        Object response = connectionPool.request(hostName, port, data);
+        Log.debug(() -> "Server read input data : " + response);
         return response;
-
     }
 
 
     public String getIp() {
-        return publisherIps[publisherNo];
+        return publishers.get(publisherNo).getIp();
     }
 
     public int getPort() {
-        return publisherPorts[publisherNo];
+        return publishers.get(publisherNo).getPort();
+    }
+
+    public void setServerMode(ServerMode serverMode, int poolSize) {
+        this.serverMode = serverMode;
+        this.poolSize = poolSize;
+    }
+
+    // must be called before init
+    public void setLibrary(Path libraryPath, Path manifestPath) {
+        this.libraryPath = libraryPath;
+        this.manifestPath = manifestPath;
     }
 
     public int getPublisherNo() {
         return publisherNo;
     }
 
-    public List<ArtistName> getAllArtists() {
-        return allArtists;
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    public Catalog getCatalog() {
+        return catalog;
     }
 
     public List<NodeInfo> getPublishers() {
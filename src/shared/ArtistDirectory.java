@@ -0,0 +1,144 @@
+package shared;
+
+import java.util.*;
+
+/**
+ * Versioned map from artist to the node serving it. The coordinating broker numbers every change it
+ * registers with the next version of its epoch, a start timestamp, so a restarted coordinator is told
+ * apart from the one before. Everybody else applies {@link MetadataDelta}s of those changes: a delta that
+ * was already applied is ignored, one that leaves a gap is refused so the caller can pull the missing
+ * versions, which makes redelivery and reordering harmless.
+ */
+public class ArtistDirectory {
+
+    private long epoch;
+    private long version;
+    // removed artists stay as entries without a node, so deltas can report them
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    public ArtistDirectory() {
+        this(0);
+    }
+
+    public ArtistDirectory(long epoch) {
+        this.epoch = epoch;
+    }
+
+    // replaces the whole node map; returns what changed, or null if nothing did
+    public synchronized MetadataDelta register(Map<NodeInfo, List<ArtistName>> nodeData) {
+        long fromVersion = version;
+        long toVersion = version + 1;
+        Map<NodeInfo, List<ArtistName>> added = new HashMap<>();
+        Set<String> present = new HashSet<>();
+        for (Map.Entry<NodeInfo, List<ArtistName>> nodeEntry : nodeData.entrySet()) {
+            for (ArtistName artistName : nodeEntry.getValue()) {
+                String name = artistName.getArtistName();
+                if (!present.add(name)) continue;
+                Entry entry = entries.get(name);
+                if (entry != null && nodeEntry.getKey().equals(entry.node)) continue;
+                entries.put(name, new Entry(nodeEntry.getKey(), artistName, toVersion));
+                added.computeIfAbsent(nodeEntry.getKey(), k -> new ArrayList<>()).add(artistName);
+            }
+        }
+        List<String> removed = new ArrayList<>();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            if (entry.getValue().node != null && !present.contains(entry.getKey())) {
+                entry.setValue(new Entry(null, null, toVersion));
+                removed.add(entry.getKey());
+            }
+        }
+        if (added.isEmpty() && removed.isEmpty()) return null;
+        version = toVersion;
+        return new MetadataDelta(epoch, fromVersion, toVersion, added, removed);
+    }
+
+    // a snapshot when asked about another epoch
+    public synchronized MetadataDelta since(long knownEpoch, long knownVersion) {
+        long fromVersion = knownEpoch == epoch ? Math.min(knownVersion, version) : 0;
+        Map<NodeInfo, List<ArtistName>> added = new HashMap<>();
+        List<String> removed = new ArrayList<>();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            Entry value = entry.getValue();
+            if (value.version <= fromVersion) continue;
+            if (value.node != null) {
+                added.computeIfAbsent(value.node, k -> new ArrayList<>()).add(value.artistName);
+            } else if (fromVersion > 0) {
+                removed.add(entry.getKey());
+            }
+        }
+        return new MetadataDelta(epoch, fromVersion, version, added, removed);
+    }
+
+    // false if the delta cannot be applied on top of what is known, i.e. the caller should pull
+    public synchronized boolean apply(MetadataDelta delta) {
+        if (delta.getEpoch() != epoch) {
+            if (!delta.isSnapshot() || delta.getEpoch() < epoch) return false;
+        } else if (delta.getToVersion() <= version) {
+            return true;
+        } else if (delta.getFromVersion() > version) {
+            return false;
+        }
+        if (delta.isSnapshot()) entries.clear();
+        long stamp = delta.getToVersion();
+        for (Map.Entry<NodeInfo, List<ArtistName>> nodeEntry : delta.getAdded().entrySet()) {
+            for (ArtistName artistName : nodeEntry.getValue()) {
+                entries.put(artistName.getArtistName(), new Entry(nodeEntry.getKey(), artistName, stamp));
+            }
+        }
+        for (String name : delta.getRemoved()) {
+            entries.put(name, new Entry(null, null, stamp));
+        }
+        epoch = delta.getEpoch();
+        version = stamp;
+        return true;
+    }
+
+    // a message as the node map it is, null if it is anything else
+    @SuppressWarnings("unchecked")
+    public static Map<NodeInfo, List<ArtistName>> asNodeMap(Object value) {
+        if (!(value instanceof Map)) return null;
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+            if (!(entry.getKey() instanceof NodeInfo) || !(entry.getValue() instanceof List)) return null;
+            for (Object element : (List<?>) entry.getValue()) {
+                if (!(element instanceof ArtistName)) return null;
+            }
+        }
+        // every key and element checked above
+        return (Map<NodeInfo, List<ArtistName>>) value;
+    }
+
+    public synchronized Map<NodeInfo, List<ArtistName>> toNodeMap() {
+        Map<NodeInfo, List<ArtistName>> nodeData = new HashMap<>();
+        for (Entry entry : entries.values()) {
+            if (entry.node != null) {
+                nodeData.computeIfAbsent(entry.node, k -> new ArrayList<>()).add(entry.artistName);
+            }
+        }
+        return nodeData;
+    }
+
+    public synchronized long getEpoch() {
+        return epoch;
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ArtistDirectory{epoch=" + epoch + ", version=" + version + ", artists=" + entries.size() + '}';
+    }
+
+    private static class Entry {
+        private final NodeInfo node;
+        private final ArtistName artistName;
+        private final long version;
+
+        Entry(NodeInfo node, ArtistName artistName, long version) {
+            this.node = node;
+            this.artistName = artistName;
+            this.version = version;
+        }
+    }
+}
@@ -3,6 +3,8 @@ package shared;
 import java.io.Serializable;
 
 public class ArtistName implements Comparable<ArtistName>, Serializable {
+    private static final long serialVersionUID = 1L;
+
 
     private String artistName;
 
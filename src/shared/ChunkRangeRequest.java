@@ -0,0 +1,43 @@
+package shared;
+
+import java.io.Serializable;
+
+public class ChunkRangeRequest implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private SongInfo songInfo;
+    private int fromPart;
+    // inclusive
+    private int toPart;
+
+    public ChunkRangeRequest(SongInfo songInfo, int fromPart, int toPart) {
+        this.songInfo = songInfo;
+        this.fromPart = fromPart;
+        this.toPart = toPart;
+    }
+
+    public SongInfo getSongInfo() {
+        return songInfo;
+    }
+
+    public int getFromPart() {
+        return fromPart;
+    }
+
+    public int getToPart() {
+        return toPart;
+    }
+
+    public ChunkRequest chunkRequest(int partNo) {
+        return new ChunkRequest(songInfo, partNo);
+    }
+
+    @Override
+    public String toString() {
+        return "ChunkRangeRequest{" +
+                "songInfo=" + songInfo +
+                ", parts=" + fromPart +
+                ".." + toPart +
+                '}';
+    }
+}
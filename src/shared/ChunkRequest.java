@@ -3,6 +3,8 @@ package shared;
 import java.io.Serializable;
 
 public class ChunkRequest implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     private SongInfo songInfo;
     private int partNo;
 
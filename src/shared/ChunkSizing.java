@@ -0,0 +1,54 @@
+package shared;
+
+/**
+ * How a song is cut into parts. Part counts and offsets are only ever derived from here and the file size
+ * and chunk size a {@link SongInfo} carries, so the publisher, the brokers and the consumers cannot disagree
+ * on where a part starts. Chunk sizes are powers of two between {@link #MIN_CHUNK_SIZE} and
+ * {@link #MAX_CHUNK_SIZE}, which keeps the number of different cuts of one song, and so of cache entries
+ * and publisher streams for it, small.
+ */
+public final class ChunkSizing {
+
+    public static final int MIN_CHUNK_SIZE = 64 * 1024;
+    public static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+    // for files whose bitrate could not be read
+    public static final int DEFAULT_CHUNK_SIZE = 512 * 1024;
+    // seconds of audio per part, so a part is worth about the same listening time whatever the encoding
+    static final int SECONDS_PER_CHUNK = 8;
+    // even small files come in a few parts, so the first one arrives well before the whole file would
+    static final int MIN_PARTS = 4;
+    // a consumer negotiating the chunk size aims for parts that take about this long to arrive
+    static final int TARGET_CHUNK_MILLIS = 100;
+
+    private ChunkSizing() {
+    }
+
+    // bitrate in kbit/s, 0 if unknown
+    public static int forSong(long fileSize, int bitrate) {
+        long size = bitrate > 0 ? bitrate * 1000L / 8 * SECONDS_PER_CHUNK : DEFAULT_CHUNK_SIZE;
+        size = Math.min(size, (fileSize + MIN_PARTS - 1) / MIN_PARTS);
+        return clamp(size);
+    }
+
+    // what a consumer measuring this throughput asks for, still in a few parts for a fast first one
+    public static int forThroughput(double bytesPerSecond, long fileSize) {
+        long size = bytesPerSecond > 0 ? (long) (bytesPerSecond * TARGET_CHUNK_MILLIS / 1000) : DEFAULT_CHUNK_SIZE;
+        return clamp(Math.min(size, (fileSize + MIN_PARTS - 1) / MIN_PARTS));
+    }
+
+    // the nearest allowed chunk size
+    public static int clamp(long size) {
+        if (size <= MIN_CHUNK_SIZE) return MIN_CHUNK_SIZE;
+        if (size >= MAX_CHUNK_SIZE) return MAX_CHUNK_SIZE;
+        long lower = Long.highestOneBit(size);
+        return (int) (size - lower < lower / 2 ? lower : lower * 2);
+    }
+
+    public static int partsTotal(long fileSize, int chunkSize) {
+        return (int) ((fileSize + chunkSize - 1) / chunkSize);
+    }
+
+    public static long offsetOf(int partNo, int chunkSize) {
+        return (long) partNo * chunkSize;
+    }
+}
@@ -0,0 +1,40 @@
+package shared;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Where the brokers and publishers listen, as comma separated host:port lists in -Dcluster.brokers and
+ * -Dcluster.publishers. Node numbers follow the order of the list and broker 0 is the one publishers
+ * and consumers contact first.
+ */
+public class ClusterConfig {
+
+    public static final String DEFAULT_BROKERS = "localhost:6000,localhost:6001,localhost:6002";
+    public static final String DEFAULT_PUBLISHERS = "localhost:7000,localhost:7001";
+
+    public static List<NodeInfo> brokers() {
+        return parse(System.getProperty("cluster.brokers", DEFAULT_BROKERS));
+    }
+
+    public static List<NodeInfo> publishers() {
+        return parse(System.getProperty("cluster.publishers", DEFAULT_PUBLISHERS));
+    }
+
+    public static NodeInfo knownBroker() {
+        return brokers().get(0);
+    }
+
+    public static List<NodeInfo> parse(String addresses) {
+        List<NodeInfo> nodes = new ArrayList<>();
+        for (String address : addresses.split(",")) {
+            address = address.trim();
+            if (address.isEmpty()) continue;
+            int colon = address.lastIndexOf(':');
+            if (colon < 0) throw new IllegalArgumentException("Expected host:port but got " + address);
+            nodes.add(new NodeInfo(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)), nodes.size()));
+        }
+        return Collections.unmodifiableList(nodes);
+    }
+}
@@ -0,0 +1,26 @@
+package shared;
+
+import java.io.Serializable;
+
+/**
+ * Ping and answer of the membership protocol. Every node answers a heartbeat with one of its own, which is
+ * all the pinging node needs to know the other one is alive and responsive.
+ */
+public class Heartbeat implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final NodeInfo from;
+
+    public Heartbeat(NodeInfo from) {
+        this.from = from;
+    }
+
+    public NodeInfo getFrom() {
+        return from;
+    }
+
+    @Override
+    public String toString() {
+        return "Heartbeat{" + from + '}';
+    }
+}
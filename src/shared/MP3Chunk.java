@@ -1,12 +1,19 @@
 package shared;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 
 public class MP3Chunk implements Serializable {
+    private static final long serialVersionUID = 1L;
+
 
     private SongInfo songInfo;
     private int partNo;
     private byte[] musicFileExtract;
+    // set instead of musicFileExtract when the bytes live outside the heap, e.g. in a cache or a mapped file
+    private transient ByteBuffer payload;
 
     public MP3Chunk(SongInfo songInfo, int partNo, byte[] musicFileExtract) {
         this.songInfo = songInfo;
@@ -14,6 +21,12 @@ public class MP3Chunk implements Serializable {
         this.musicFileExtract = musicFileExtract;
     }
 
+    public MP3Chunk(SongInfo songInfo, int partNo, ByteBuffer payload) {
+        this.songInfo = songInfo;
+        this.partNo = partNo;
+        this.payload = payload;
+    }
+
     public SongInfo getSongInfo() {
         return songInfo;
     }
@@ -31,19 +44,42 @@ public class MP3Chunk implements Serializable {
     }
 
     public byte[] getMusicFileExtract() {
+        if (musicFileExtract == null && payload != null) {
+            byte[] bytes = new byte[payload.remaining()];
+            payload.duplicate().get(bytes);
+            musicFileExtract = bytes;
+        }
         return musicFileExtract;
     }
 
     public void setMusicFileExtract(byte[] musicFileExtract) {
         this.musicFileExtract = musicFileExtract;
+        this.payload = null;
+    }
+
+    // view of the bytes that never copies them, callers must not write through it
+    public ByteBuffer getPayload() {
+        if (payload != null) return payload.duplicate();
+        return ByteBuffer.wrap(musicFileExtract);
+    }
+
+    public int getSize() {
+        return payload != null ? payload.remaining() : musicFileExtract.length;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        getMusicFileExtract();
+        out.defaultWriteObject();
     }
 
     @Override
     public String toString() {
         return "MP3Chunk{" +
-                "" + songInfo.getSongTitle() +
+                Long.toHexString(songInfo.getSongId()) +
+                // chunks off the wire only know their song by id
+                (songInfo.getSongTitle() != null ? " " + songInfo.getSongTitle() : "") +
                 "|part" + partNo +
-                " of size=" + musicFileExtract.length +
+                " of size=" + getSize() +
                 '}';
     }
 }
@@ -0,0 +1,64 @@
+package shared;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The changes to an {@link ArtistDirectory} between two versions of one epoch: the artists that are now
+ * served by a node and the artists that are not served anymore. A delta starting at version 0 is a full
+ * snapshot and replaces whatever the receiver had.
+ */
+public class MetadataDelta implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final long epoch;
+    private final long fromVersion;
+    private final long toVersion;
+    private final Map<NodeInfo, List<ArtistName>> added;
+    private final List<String> removed;
+
+    public MetadataDelta(long epoch, long fromVersion, long toVersion,
+                         Map<NodeInfo, List<ArtistName>> added, List<String> removed) {
+        this.epoch = epoch;
+        this.fromVersion = fromVersion;
+        this.toVersion = toVersion;
+        this.added = added;
+        this.removed = removed;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public long getFromVersion() {
+        return fromVersion;
+    }
+
+    public long getToVersion() {
+        return toVersion;
+    }
+
+    public Map<NodeInfo, List<ArtistName>> getAdded() {
+        return added;
+    }
+
+    public List<String> getRemoved() {
+        return removed;
+    }
+
+    public boolean isSnapshot() {
+        return fromVersion == 0;
+    }
+
+    @Override
+    public String toString() {
+        return "MetadataDelta{" +
+                "epoch=" + epoch +
+                ", " + fromVersion +
+                "->" + toVersion +
+                ", added=" + added +
+                ", removed=" + removed +
+                '}';
+    }
+}
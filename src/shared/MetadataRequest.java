@@ -0,0 +1,46 @@
+package shared;
+
+import java.io.Serializable;
+
+/**
+ * Asks a broker for the {@link MetadataDelta} since a known version, either of the artist to publisher
+ * routes (what brokers need) or of the artist to broker routes (what consumers need).
+ * Epoch and version 0 ask for everything.
+ */
+public class MetadataRequest implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+
+    public enum Routes {PUBLISHERS, BROKERS}
+
+    private final Routes routes;
+    private final long epoch;
+    private final long sinceVersion;
+
+    public MetadataRequest(Routes routes, long epoch, long sinceVersion) {
+        this.routes = routes;
+        this.epoch = epoch;
+        this.sinceVersion = sinceVersion;
+    }
+
+    public Routes getRoutes() {
+        return routes;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public long getSinceVersion() {
+        return sinceVersion;
+    }
+
+    @Override
+    public String toString() {
+        return "MetadataRequest{" +
+                routes +
+                ", epoch=" + epoch +
+                ", since=" + sinceVersion +
+                '}';
+    }
+}
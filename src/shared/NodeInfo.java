@@ -3,6 +3,8 @@ package shared;
 import java.io.Serializable;
 
 public class NodeInfo implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     private final String ip;
     private final int port;
     private final int no;
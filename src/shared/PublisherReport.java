@@ -0,0 +1,44 @@
+package shared;
+
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * What a publisher tells the brokers when it joins and then every now and then: the artists it can serve
+ * with the bytes their songs take, and the bytes it served of each artist since its previous report.
+ * The coordinating broker decides from these which publisher serves which artist.
+ */
+public class PublisherReport implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final NodeInfo publisher;
+    private final Map<ArtistName, Long> catalogBytes;
+    private final Map<ArtistName, Long> servedBytes;
+
+    public PublisherReport(NodeInfo publisher, Map<ArtistName, Long> catalogBytes, Map<ArtistName, Long> servedBytes) {
+        this.publisher = publisher;
+        this.catalogBytes = catalogBytes;
+        this.servedBytes = servedBytes;
+    }
+
+    public NodeInfo getPublisher() {
+        return publisher;
+    }
+
+    public Map<ArtistName, Long> getCatalogBytes() {
+        return catalogBytes;
+    }
+
+    public Map<ArtistName, Long> getServedBytes() {
+        return servedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "PublisherReport{" +
+                publisher +
+                ", artists=" + catalogBytes.size() +
+                ", served=" + servedBytes.size() +
+                '}';
+    }
+}
@@ -0,0 +1,63 @@
+package shared;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable index from artist name to the node that owns it. Built once per change of the node map and
+ * replaced as a whole, so lookups need neither locks nor allocation.
+ */
+public final class RoutingTable {
+
+    public static final RoutingTable EMPTY = new RoutingTable(Collections.emptyMap());
+
+    private final Map<String, Route> routes;
+
+    private RoutingTable(Map<String, Route> routes) {
+        this.routes = routes;
+    }
+
+    public static RoutingTable of(Map<NodeInfo, List<ArtistName>> nodeData) {
+        if (nodeData == null || nodeData.isEmpty()) return EMPTY;
+        Map<String, Route> routes = new HashMap<>();
+        for (Map.Entry<NodeInfo, List<ArtistName>> entry : nodeData.entrySet()) {
+            for (ArtistName artistName : entry.getValue()) {
+                routes.putIfAbsent(artistName.getArtistName(), new Route(entry.getKey(), artistName));
+            }
+        }
+        return new RoutingTable(Collections.unmodifiableMap(routes));
+    }
+
+    public Route lookup(String artistName) {
+        return artistName == null ? null : routes.get(artistName);
+    }
+
+    public int size() {
+        return routes.size();
+    }
+
+    public static final class Route {
+        private final NodeInfo node;
+        private final ArtistName artistName;
+
+        Route(NodeInfo node, ArtistName artistName) {
+            this.node = node;
+            this.artistName = artistName;
+        }
+
+        public NodeInfo getNode() {
+            return node;
+        }
+
+        public ArtistName getArtistName() {
+            return artistName;
+        }
+
+        @Override
+        public String toString() {
+            return artistName + "@" + node;
+        }
+    }
+}
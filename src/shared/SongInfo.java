@@ -1,38 +1,81 @@
 package shared;
 
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 public class SongInfo implements Serializable {
-    private String songTitle;
-    private String artistName;
-    private String albumDetails;
-    private String genre;
-    private String songPath;
-    private int partsTotal;
-
-    public SongInfo(String songTitle, String artistName, String albumDetails, String genre, String songPath, int partsTotal) {
+    private static final long serialVersionUID = 1L;
+
+    // derived from what the song is, so every publisher that has it gives it the same id, see idOf
+    private final long songId;
+    private final String songTitle;
+    private final String artistName;
+    private final String albumDetails;
+    private final String genre;
+    private final String songPath;
+    private final long fileSize;
+    // the publisher picks it per song, a consumer may ask for another one, see ChunkSizing
+    private final int chunkSize;
+
+    public SongInfo(String songTitle, String artistName, String albumDetails, String genre, String songPath,
+                    long fileSize, int chunkSize) {
+        this(idOf(artistName, songTitle, albumDetails, fileSize), songTitle, artistName, albumDetails, genre, songPath,
+                fileSize, chunkSize);
+    }
+
+    public SongInfo(long songId, String songTitle, String artistName, String albumDetails, String genre, String songPath,
+                    long fileSize, int chunkSize) {
+        this.songId = songId;
         this.songTitle = songTitle;
         this.artistName = artistName;
         this.albumDetails = albumDetails;
         this.genre = genre;
         this.songPath = songPath;
-        this.partsTotal = partsTotal;
+        this.fileSize = fileSize;
+        this.chunkSize = chunkSize;
     }
 
-    public String getSongTitle() {
-        return songTitle;
+    // the same song cut into parts of another size
+    public SongInfo withChunkSize(int chunkSize) {
+        int size = ChunkSizing.clamp(chunkSize);
+        if (size == this.chunkSize) return this;
+        return new SongInfo(songId, songTitle, artistName, albumDetails, genre, songPath, fileSize, size);
     }
 
-    public void setSongTitle(String songTitle) {
-        this.songTitle = songTitle;
+    // what chunk requests carry: enough for a broker to route and cache them and for a publisher to cut the
+    // song, without its tags and path
+    public static SongInfo reference(long songId, String artistName, long fileSize, int chunkSize) {
+        return new SongInfo(songId, null, artistName, null, null, null, fileSize, chunkSize);
     }
 
-    public String getArtistName() {
-        return artistName;
+    public SongInfo toReference() {
+        return reference(songId, artistName, fileSize, chunkSize);
     }
 
-    public void setArtistName(String artistName) {
-        this.artistName = artistName;
+    // the first 64 bits of a SHA-256 of artist, title, album and size; the catalog reports the rare collision
+    public static long idOf(String artistName, String songTitle, String albumDetails, long fileSize) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            String identity = artistName + '\n' + songTitle + '\n' + albumDetails + '\n' + fileSize;
+            return ByteBuffer.wrap(digest.digest(identity.getBytes(StandardCharsets.UTF_8))).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public long getSongId() {
+        return songId;
+    }
+
+    public String getSongTitle() {
+        return songTitle;
+    }
+
+    public String getArtistName() {
+        return artistName;
     }
 
     public String getAlbumDetails() {
@@ -47,14 +90,23 @@ public class SongInfo implements Serializable {
         return songPath;
     }
 
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
     public int getPartsTotal() {
-        return partsTotal;
+        return ChunkSizing.partsTotal(fileSize, chunkSize);
     }
 
     @Override
     public String toString() {
         return "SongInfo{" +
-                "songTitle='" + songTitle + '\'' +
+                "songId=" + Long.toHexString(songId) +
+                ", songTitle='" + songTitle + '\'' +
                 ", artistName='" + artistName + '\'' +
 //                ", albumDetails='" + albumDetails + '\'' +
 //                ", genre='" + genre + '\'' +
@@ -68,11 +120,11 @@ public class SongInfo implements Serializable {
 
         SongInfo songInfo = (SongInfo) o;
 
-        return songTitle != null ? songTitle.equals(songInfo.songTitle) : songInfo.songTitle == null;
+        return songId == songInfo.songId;
     }
 
     @Override
     public int hashCode() {
-        return songTitle != null ? songTitle.hashCode() : 0;
+        return Long.hashCode(songId);
     }
 }
@@ -0,0 +1,293 @@
+package util;
+
+import shared.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Compact tagged encoding of the messages in {@code shared}. Every value starts with a one byte type tag,
+ * strings are length-prefixed UTF-8 and chunk payloads are appended as their own buffer, never copied.
+ * Types without a binary form fall back to Java serialization inside a {@link #JAVA} value. Chunk requests
+ * name their song by id, artist and cut only, and chunks by id and cut.
+ */
+public class BinaryCodec implements Codec {
+
+    public static final byte ID = 1;
+    public static final BinaryCodec INSTANCE = new BinaryCodec();
+
+    static final byte NULL = 0;
+    static final byte STRING = 1;
+    static final byte ARTIST_NAME = 2;
+    static final byte SONG_INFO = 3;
+    static final byte CHUNK_REQUEST = 4;
+    static final byte MP3_CHUNK = 5;
+    static final byte NODE_INFO = 6;
+    static final byte NODE_ARTISTS_MAP = 7;
+    static final byte LIST = 8;
+    static final byte EMPTY = 9;
+    static final byte CHUNK_RANGE_REQUEST = 10;
+    static final byte INTEGER = 11;
+    static final byte HEARTBEAT = 12;
+    static final byte JAVA = 127;
+    // the shortest encoding of a NodeInfo, a string length and two ints
+    private static final int NODE_INFO_MIN_LENGTH = 12;
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    @Override
+    public ByteBuffer[] encode(Object message) throws IOException {
+        Encoder encoder = new Encoder();
+        encoder.writeValue(message);
+        return encoder.finish();
+    }
+
+    @Override
+    public Object decode(ByteBuffer payload) throws IOException {
+        try {
+            return readValue(payload);
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed binary payload", e);
+        }
+    }
+
+    private Object readValue(ByteBuffer in) throws IOException {
+        byte type = in.get();
+        switch (type) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(in);
+            case ARTIST_NAME:
+                return readArtistName(in);
+            case SONG_INFO:
+                return readSongInfo(in);
+            case CHUNK_REQUEST:
+                return new ChunkRequest(readSongReference(in), in.getInt());
+            case MP3_CHUNK: {
+                // only the id and the cut, the receiver knows the rest from its request
+                SongInfo songInfo = SongInfo.reference(in.getLong(), null, 0, in.getInt());
+                int partNo = in.getInt();
+                byte[] musicFileExtract = new byte[readCount(in, 1)];
+                in.get(musicFileExtract);
+                return new MP3Chunk(songInfo, partNo, musicFileExtract);
+            }
+            case NODE_INFO:
+                return readNodeInfo(in);
+            case NODE_ARTISTS_MAP: {
+                int size = readCount(in, NODE_INFO_MIN_LENGTH);
+                Map<NodeInfo, List<ArtistName>> map = new HashMap<>();
+                for (int i = 0; i < size; i++) {
+                    NodeInfo node = readNodeInfo(in);
+                    int artists = readCount(in, 4);
+                    List<ArtistName> artistNames = new ArrayList<>(artists);
+                    for (int j = 0; j < artists; j++) {
+                        artistNames.add(readArtistName(in));
+                    }
+                    map.put(node, artistNames);
+                }
+                return map;
+            }
+            case LIST: {
+                int size = readCount(in, 1);
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue(in));
+                }
+                return list;
+            }
+            case EMPTY:
+                return new Object();
+            case CHUNK_RANGE_REQUEST:
+                return new ChunkRangeRequest(readSongReference(in), in.getInt(), in.getInt());
+            case INTEGER:
+                return in.getInt();
+            case HEARTBEAT:
+                return new Heartbeat(readNodeInfo(in));
+            case JAVA: {
+                int length = readCount(in, 1);
+                ByteBuffer serialized = in.slice();
+                serialized.limit(length);
+                in.position(in.position() + length);
+                return JavaCodec.INSTANCE.decode(serialized);
+            }
+            default:
+                throw new IOException("Unknown type tag " + type);
+        }
+    }
+
+    // a count read off the wire, checked against what is left of the payload before anything is allocated for it
+    private static int readCount(ByteBuffer in, int minElementLength) throws IOException {
+        int count = in.getInt();
+        if (count < 0 || (long) count * minElementLength > in.remaining()) {
+            throw new IOException("Invalid length " + count + " with " + in.remaining() + " bytes left");
+        }
+        return count;
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) return null;
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    private static ArtistName readArtistName(ByteBuffer in) {
+        ArtistName artistName = new ArtistName();
+        artistName.setArtistName(readString(in));
+        return artistName;
+    }
+
+    private static SongInfo readSongInfo(ByteBuffer in) {
+        return new SongInfo(in.getLong(), readString(in), readString(in), readString(in), readString(in), readString(in),
+                in.getLong(), in.getInt());
+    }
+
+    private static SongInfo readSongReference(ByteBuffer in) {
+        return SongInfo.reference(in.getLong(), readString(in), in.getLong(), in.getInt());
+    }
+
+    private static NodeInfo readNodeInfo(ByteBuffer in) {
+        return new NodeInfo(readString(in), in.getInt(), in.getInt());
+    }
+
+    private static class Encoder {
+        private final List<ByteBuffer> buffers = new ArrayList<>();
+        private ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        private DataOutputStream out = new DataOutputStream(bytes);
+
+        void writeValue(Object value) throws IOException {
+            if (value == null) {
+                out.writeByte(NULL);
+            } else if (value instanceof String) {
+                out.writeByte(STRING);
+                writeString((String) value);
+            } else if (value instanceof ArtistName) {
+                out.writeByte(ARTIST_NAME);
+                writeArtistName((ArtistName) value);
+            } else if (value instanceof SongInfo) {
+                out.writeByte(SONG_INFO);
+                writeSongInfo((SongInfo) value);
+            } else if (value instanceof ChunkRequest) {
+                ChunkRequest chunkRequest = (ChunkRequest) value;
+                out.writeByte(CHUNK_REQUEST);
+                writeSongReference(chunkRequest.getSongInfo());
+                out.writeInt(chunkRequest.getPartNo());
+            } else if (value instanceof MP3Chunk) {
+                MP3Chunk chunk = (MP3Chunk) value;
+                ByteBuffer payload = chunk.getPayload();
+                out.writeByte(MP3_CHUNK);
+                out.writeLong(chunk.getSongInfo().getSongId());
+                out.writeInt(chunk.getSongInfo().getChunkSize());
+                out.writeInt(chunk.getPartNo());
+                out.writeInt(payload.remaining());
+                appendBuffer(payload);
+            } else if (value instanceof NodeInfo) {
+                out.writeByte(NODE_INFO);
+                writeNodeInfo((NodeInfo) value);
+            } else if (ArtistDirectory.asNodeMap(value) != null) {
+                Map<NodeInfo, List<ArtistName>> map = ArtistDirectory.asNodeMap(value);
+                out.writeByte(NODE_ARTISTS_MAP);
+                out.writeInt(map.size());
+                for (Map.Entry<NodeInfo, List<ArtistName>> entry : map.entrySet()) {
+                    writeNodeInfo(entry.getKey());
+                    out.writeInt(entry.getValue().size());
+                    for (ArtistName artistName : entry.getValue()) {
+                        writeArtistName(artistName);
+                    }
+                }
+            } else if (value instanceof List) {
+                List<?> list = (List<?>) value;
+                out.writeByte(LIST);
+                out.writeInt(list.size());
+                for (Object element : list) {
+                    writeValue(element);
+                }
+            } else if (value instanceof ChunkRangeRequest) {
+                ChunkRangeRequest rangeRequest = (ChunkRangeRequest) value;
+                out.writeByte(CHUNK_RANGE_REQUEST);
+                writeSongReference(rangeRequest.getSongInfo());
+                out.writeInt(rangeRequest.getFromPart());
+                out.writeInt(rangeRequest.getToPart());
+            } else if (value instanceof Integer) {
+                out.writeByte(INTEGER);
+                out.writeInt((Integer) value);
+            } else if (value instanceof Heartbeat) {
+                out.writeByte(HEARTBEAT);
+                writeNodeInfo(((Heartbeat) value).getFrom());
+            } else if (value.getClass() == Object.class) {
+                out.writeByte(EMPTY);
+            } else {
+                ByteBuffer serialized = JavaCodec.INSTANCE.encode(value)[0];
+                out.writeByte(JAVA);
+                out.writeInt(serialized.remaining());
+                appendBuffer(serialized);
+            }
+        }
+
+        private void writeString(String value) throws IOException {
+            if (value == null) {
+                out.writeInt(-1);
+                return;
+            }
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(utf8.length);
+            out.write(utf8);
+        }
+
+        private void writeArtistName(ArtistName artistName) throws IOException {
+            writeString(artistName.getArtistName());
+        }
+
+        private void writeSongInfo(SongInfo songInfo) throws IOException {
+            out.writeLong(songInfo.getSongId());
+            writeString(songInfo.getSongTitle());
+            writeString(songInfo.getArtistName());
+            writeString(songInfo.getAlbumDetails());
+            writeString(songInfo.getGenre());
+            writeString(songInfo.getSongPath());
+            out.writeLong(songInfo.getFileSize());
+            out.writeInt(songInfo.getChunkSize());
+        }
+
+        // the artist routes the request, file and chunk size say how the song is cut
+        private void writeSongReference(SongInfo songInfo) throws IOException {
+            out.writeLong(songInfo.getSongId());
+            writeString(songInfo.getArtistName());
+            out.writeLong(songInfo.getFileSize());
+            out.writeInt(songInfo.getChunkSize());
+        }
+
+        private void writeNodeInfo(NodeInfo nodeInfo) throws IOException {
+            writeString(nodeInfo.getIp());
+            out.writeInt(nodeInfo.getPort());
+            out.writeInt(nodeInfo.getNo());
+        }
+
+        private void appendBuffer(ByteBuffer buffer) {
+            flushBytes();
+            buffers.add(buffer);
+        }
+
+        private void flushBytes() {
+            if (bytes.size() > 0) {
+                buffers.add(ByteBuffer.wrap(bytes.toByteArray()));
+                bytes = new ByteArrayOutputStream(64);
+                out = new DataOutputStream(bytes);
+            }
+        }
+
+        ByteBuffer[] finish() {
+            flushBytes();
+            return buffers.toArray(new ByteBuffer[0]);
+        }
+    }
+}
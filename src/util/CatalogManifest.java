@@ -0,0 +1,132 @@
+package util;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Binary record of the tags read from every file of the library, keyed by path and stamped with the
+ * file's mtime and size, so a restart only has to parse the files that changed since.
+ */
+public class CatalogManifest {
+
+    private static final int MAGIC = 0x4453434D;
+    private static final int VERSION = 2;
+
+    private final Map<String, Entry> entries;
+
+    public CatalogManifest(Map<String, Entry> entries) {
+        this.entries = entries;
+    }
+
+    public static CatalogManifest read(Path manifestPath) {
+        Map<String, Entry> entries = new HashMap<>();
+        if (!Files.isRegularFile(manifestPath)) return new CatalogManifest(entries);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(manifestPath)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                System.out.println("Ignoring catalog manifest with unknown format : " + manifestPath);
+                return new CatalogManifest(entries);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Entry entry = new Entry(in.readUTF(), in.readLong(), in.readLong(),
+                        in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF(), in.readInt());
+                entries.put(entry.getPath(), entry);
+            }
+        } catch (IOException e) {
+            System.out.println("Ignoring unreadable catalog manifest " + manifestPath + " : " + e.getMessage());
+            entries.clear();
+        }
+        return new CatalogManifest(entries);
+    }
+
+    public static void write(Path manifestPath, Collection<Entry> entries) throws IOException {
+        Path parent = manifestPath.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(parent, manifestPath.getFileName().toString(), ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeUTF(entry.getPath());
+                out.writeLong(entry.getLastModified());
+                out.writeLong(entry.getSize());
+                out.writeUTF(entry.getTitle());
+                out.writeUTF(entry.getArtist());
+                out.writeUTF(entry.getAlbum());
+                out.writeUTF(entry.getGenre());
+                out.writeInt(entry.getBitrate());
+            }
+        }
+        // publishers started from the same directory may race on the manifest, the rename keeps it whole
+        Files.move(tmp, manifestPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public Entry get(String path, long lastModified, long size) {
+        Entry entry = entries.get(path);
+        if (entry == null || entry.getLastModified() != lastModified || entry.getSize() != size) return null;
+        return entry;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public static class Entry {
+        private final String path;
+        private final long lastModified;
+        private final long size;
+        private final String title;
+        private final String artist;
+        private final String album;
+        private final String genre;
+        // kbit/s, 0 if unknown
+        private final int bitrate;
+
+        public Entry(String path, long lastModified, long size, String title, String artist, String album, String genre,
+                     int bitrate) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.size = size;
+            this.title = title;
+            this.artist = artist;
+            this.album = album;
+            this.genre = genre;
+            this.bitrate = bitrate;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        public String getArtist() {
+            return artist;
+        }
+
+        public String getAlbum() {
+            return album;
+        }
+
+        public String getGenre() {
+            return genre;
+        }
+
+        public int getBitrate() {
+            return bitrate;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Turns messages into frame payloads and back. A message may encode to several buffers so that large
+ * byte arrays are written to the socket as they are instead of being copied into one contiguous payload.
+ */
+public interface Codec {
+
+    byte getId();
+
+    ByteBuffer[] encode(Object message) throws IOException;
+
+    Object decode(ByteBuffer payload) throws IOException;
+
+    static Codec forId(byte id) {
+        if (id == BinaryCodec.ID) return BinaryCodec.INSTANCE;
+        return JavaCodec.INSTANCE;
+    }
+}
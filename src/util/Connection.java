@@ -0,0 +1,182 @@
+package util;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Long-lived client side of a {@link FramedProtocol} session with one peer.
+ * Requests are written under a lock and matched to their responses by request id on a reader thread.
+ */
+public class Connection implements Closeable {
+
+    public static final int CONNECT_TIMEOUT = 2000;
+
+    public interface ItemListener {
+        // runs on the connection's reader thread, so a slow listener holds back the whole connection
+        void onItem(Object item);
+    }
+
+    private final String hostName;
+    private final int port;
+    private final Codec preferredCodec;
+    private Codec codec;
+    private final Socket socket = new Socket();
+    private DataOutputStream out;
+    private DataInputStream in;
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private final Map<Integer, Pending> pending = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    public Connection(String hostName, int port, Codec preferredCodec) {
+        this.hostName = hostName;
+        this.port = port;
+        this.preferredCodec = preferredCodec;
+    }
+
+    public void connect() throws IOException {
+        try {
+            socket.connect(new InetSocketAddress(hostName, port), CONNECT_TIMEOUT);
+            socket.setTcpNoDelay(true);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            // a peer that accepts but never answers the handshake must not hold the caller forever
+            socket.setSoTimeout(CONNECT_TIMEOUT);
+            codec = FramedProtocol.requestCodec(out, in, preferredCodec);
+            socket.setSoTimeout(0);
+        } catch (IOException e) {
+            closed = true;
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            throw e;
+        }
+
+        Thread reader = new Thread(this::readResponses, "connection-" + hostName + ":" + port);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    public CompletableFuture<Object> send(Object data) {
+        return stream(data, null);
+    }
+
+    // items the peer streams before its final response are handed to onItem, the future completes with the final one
+    public CompletableFuture<Object> stream(Object data, ItemListener onItem) {
+        CompletableFuture<Object> response = new CompletableFuture<>();
+        start(data, (byte) 0, onItem, response);
+        return response;
+    }
+
+    // like stream, but the peer sends nothing until the subscription is granted credit
+    public Subscription subscribe(Object data, ItemListener onItem) {
+        CompletableFuture<Object> response = new CompletableFuture<>();
+        int requestId = start(data, FramedProtocol.FLOW_CONTROLLED, onItem, response);
+        return new Subscription(this, requestId, response);
+    }
+
+    private int start(Object data, byte flags, ItemListener onItem, CompletableFuture<Object> response) {
+        if (closed) {
+            response.completeExceptionally(new IOException("Connection to " + hostName + ":" + port + " is closed"));
+            return 0;
+        }
+        int requestId = nextRequestId.incrementAndGet();
+        pending.put(requestId, new Pending(response, onItem));
+        // a response that times out or is cancelled before the peer answers leaves nothing behind, and a
+        // flow controlled stream is told to stop
+        response.whenComplete((result, error) -> {
+            if (error != null && pending.remove(requestId) != null && (flags & FramedProtocol.FLOW_CONTROLLED) != 0) {
+                writeCredit(requestId, 0);
+            }
+        });
+        try {
+            synchronized (out) {
+                FramedProtocol.writeFrame(out, requestId, flags, data, codec);
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+        return requestId;
+    }
+
+    // nothing to do once the response is complete
+    void grant(int requestId, int credit) {
+        if (!pending.containsKey(requestId)) return;
+        writeCredit(requestId, credit);
+    }
+
+    private void writeCredit(int requestId, int credit) {
+        if (closed) return;
+        try {
+            synchronized (out) {
+                FramedProtocol.writeFrame(out, requestId, FramedProtocol.CREDIT, credit, codec);
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void readResponses() {
+        try {
+            while (!closed) {
+                FramedProtocol.Frame frame = FramedProtocol.readFrame(in, codec);
+                if (frame.hasMore()) {
+                    Pending request = pending.get(frame.getRequestId());
+                    if (request != null && request.onItem != null) {
+                        request.onItem.onItem(frame.getPayload());
+                    }
+                } else {
+                    Pending request = pending.remove(frame.getRequestId());
+                    if (request != null) {
+                        request.response.complete(frame.getPayload());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void fail(Exception cause) {
+        closed = true;
+        for (Integer requestId : pending.keySet()) {
+            Pending request = pending.remove(requestId);
+            if (request != null) request.response.completeExceptionally(cause);
+        }
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    public Codec getCodec() {
+        return codec;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public int getInFlight() {
+        return pending.size();
+    }
+
+    @Override
+    public void close() {
+        fail(new IOException("Connection to " + hostName + ":" + port + " closed"));
+    }
+
+    private static class Pending {
+        private final CompletableFuture<Object> response;
+        private final ItemListener onItem;
+
+        Pending(CompletableFuture<Object> response, ItemListener onItem) {
+            this.response = response;
+            this.onItem = onItem;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package util;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.function.Predicate;
+
+/**
+ * Keeps one multiplexed {@link Connection} per peer and reopens it when it breaks.
+ */
+public class ConnectionPool {
+
+    public static final long REQUEST_TIMEOUT = 30000;
+
+    private final Map<String, CompletableFuture<Connection>> connections = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+    private final Codec codec;
+    private final MetricsRegistry metrics;
+
+    public ConnectionPool(MetricsRegistry metrics) {
+        this(BinaryCodec.INSTANCE, metrics);
+    }
+
+    public ConnectionPool(Codec codec, MetricsRegistry metrics) {
+        this.codec = codec;
+        this.metrics = metrics;
+    }
+
+    public Connection get(String hostName, int port) throws IOException {
+        String key = hostName + ":" + port;
+        while (true) {
+            CompletableFuture<Connection> connecting = connections.get(key);
+            if (connecting == null) {
+                CompletableFuture<Connection> mine = new CompletableFuture<>();
+                connecting = connections.putIfAbsent(key, mine);
+                if (connecting == null) return connect(key, hostName, port, mine);
+            }
+            Connection connection;
+            try {
+                connection = connecting.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            }
+            if (!connection.isClosed()) return connection;
+            // broken, the next round opens a new one unless somebody else already did
+            connections.remove(key, connecting);
+        }
+    }
+
+    // connects outside the map, so a slow peer holds up only those asking for that peer, who wait on the future
+    private Connection connect(String key, String hostName, int port, CompletableFuture<Connection> connecting) throws IOException {
+        Connection fresh = new Connection(hostName, port, codec);
+        try {
+            fresh.connect();
+        } catch (IOException | RuntimeException e) {
+            connections.remove(key, connecting);
+            connecting.completeExceptionally(e);
+            throw e;
+        }
+        connecting.complete(fresh);
+        return fresh;
+    }
+
+    public CompletableFuture<Object> send(String hostName, int port, Object data) {
+        return stream(hostName, port, data, null);
+    }
+
+    public CompletableFuture<Object> stream(String hostName, int port, Object data, Connection.ItemListener onItem) {
+        long start = System.nanoTime();
+        CompletableFuture<Object> response;
+        try {
+            response = get(hostName, port).stream(data, onItem);
+        } catch (IOException e) {
+            response = new CompletableFuture<>();
+            response.completeExceptionally(e);
+        }
+        record(hostName + ":" + port, start, response);
+        return response;
+    }
+
+    public Subscription subscribe(String hostName, int port, Object data, Connection.ItemListener onItem) {
+        long start = System.nanoTime();
+        Subscription subscription;
+        try {
+            subscription = get(hostName, port).subscribe(data, onItem);
+        } catch (IOException e) {
+            CompletableFuture<Object> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            subscription = new Subscription(null, 0, failed);
+        }
+        record(hostName + ":" + port, start, subscription.getResult());
+        return subscription;
+    }
+
+    private void record(String peer, long start, CompletableFuture<Object> response) {
+        LatencyHistogram latency = latencies.computeIfAbsent(peer, k -> metrics.histogram("upstream." + k + ".latency"));
+        response.whenComplete((result, error) -> {
+            if (error == null) {
+                latency.record(System.nanoTime() - start);
+            } else {
+                metrics.counter("upstream." + peer + ".errors").increment();
+            }
+        });
+    }
+
+    /**
+     * Blocking request/response over the pooled connection, with the same failure contract as the
+     * old one-shot sendDataToServer: errors are reported and an empty Object is returned.
+     */
+    public Object request(String hostName, int port, Object data) {
+        try {
+            return requestAsync(hostName, port, data).get();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException exception) {
+            // requestAsync never fails
+        }
+        return new Object();
+    }
+
+    // request without waiting for it, the future yields an empty Object on any failure
+    public CompletableFuture<Object> requestAsync(String hostName, int port, Object data) {
+        return send(hostName, port, data).orTimeout(REQUEST_TIMEOUT, TimeUnit.MILLISECONDS).exceptionally(error -> {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if (cause instanceof TimeoutException || cause instanceof SocketTimeoutException) {
+                Log.warn("SocketTimeoutException " + hostName + ":" + port + ". " + cause.getMessage());
+            } else {
+                Log.warn("IOException - Unable to connect to " + hostName + ":" + port + ". " + cause.getMessage());
+            }
+            return new Object();
+        });
+    }
+
+    // request until the answer is one the caller can use, within the deadlines and retries of the policy
+    public CompletableFuture<Object> call(String hostName, int port, Object data, RetryPolicy retryPolicy, Predicate<Object> accepted) {
+        return retryPolicy.call(() -> send(hostName, port, data), accepted,
+                data.getClass().getSimpleName() + " to " + hostName + ":" + port);
+    }
+
+    public void closeAll() {
+        for (CompletableFuture<Connection> connection : connections.values()) {
+            connection.thenAccept(Connection::close);
+        }
+        connections.clear();
+    }
+}
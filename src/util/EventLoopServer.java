@@ -0,0 +1,410 @@
+package util;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Selector based transport: a few event loop threads read and write the frames of every connection, so an
+ * idle or slowly streaming connection costs no thread of its own. Handlers still run on the workers of the
+ * {@link ServerMode} and plug in exactly as with {@link SocketServer}.
+ * <p>
+ * A connection is not read while {@link #MAX_QUEUED_REQUESTS} of its requests wait for or run on a worker,
+ * and a handler writing to a connection with more than {@link #MAX_QUEUED_BYTES} unsent is held back until
+ * the client catches up. Plain ObjectStream clients are handed to a thread of their own.
+ */
+public class EventLoopServer implements Server {
+
+    public static final int DEFAULT_EVENT_LOOPS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    static final int MAX_QUEUED_REQUESTS = 64;
+    static final int MAX_QUEUED_BYTES = 8 * 1024 * 1024;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_WRITE_BATCH = 64;
+
+    private final RequestHandler handler;
+    private final ServerMode mode;
+    private final int poolSize;
+    private final MetricsRegistry metrics;
+    private final int eventLoopCount;
+    private ExecutorService workers;
+    private ExecutorService objectStreamSessions;
+
+    public EventLoopServer(RequestHandler handler, ServerMode mode, int poolSize, MetricsRegistry metrics, int eventLoopCount) {
+        this.handler = handler;
+        this.mode = mode;
+        this.poolSize = poolSize;
+        this.metrics = metrics;
+        this.eventLoopCount = Math.max(1, eventLoopCount);
+    }
+
+    @Override
+    public void start(int serverPort) {
+        try {
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            channel.bind(new InetSocketAddress(serverPort), 1024);
+            start(channel.socket());
+        } catch (IOException e) {
+            Log.error("IOException: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void start(ServerSocket boundSocket) {
+        ServerSocketChannel serverChannel = boundSocket.getChannel();
+        if (serverChannel == null) {
+            throw new IllegalArgumentException("The event loop transport needs a socket opened by a ServerSocketChannel");
+        }
+        workers = createWorkers();
+        objectStreamSessions = Executors.newCachedThreadPool(SocketServer.namedThreads("connection"));
+        EventLoop[] eventLoops = new EventLoop[eventLoopCount];
+        try (ServerSocketChannel server = serverChannel) {
+            for (int i = 0; i < eventLoops.length; i++) {
+                eventLoops[i] = new EventLoop(i);
+            }
+            Log.info("Server on port " + server.socket().getLocalPort() + " is accepting clients on "
+                    + eventLoops.length + " event loops in " + mode + " mode.");
+            // accepting stays blocking on the calling thread, as with SocketServer
+            int next = 0;
+            while (true) {
+                SocketChannel channel = server.accept();
+                eventLoops[next].register(channel);
+                next = (next + 1) % eventLoops.length;
+            }
+        } catch (IOException e) {
+            Log.error("IOException: " + e.getMessage());
+        } finally {
+            for (EventLoop eventLoop : eventLoops) {
+                if (eventLoop != null) eventLoop.close();
+            }
+            workers.shutdownNow();
+            objectStreamSessions.shutdownNow();
+        }
+    }
+
+    // handlers must never run on an event loop, so pooled workers queue without bound instead of using
+    // CallerRunsPolicy; the per connection limit on queued requests keeps that queue in check
+    private ExecutorService createWorkers() {
+        if (mode != ServerMode.POOLED) return mode.createWorkers(poolSize);
+        return new ThreadPoolExecutor(poolSize, poolSize, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                SocketServer.namedThreads("worker"));
+    }
+
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final Thread thread;
+        private volatile boolean closed;
+
+        EventLoop(int index) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "eventloop-" + index);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    new Session(this, channel);
+                } catch (IOException e) {
+                    Log.warn("IOException: " + e.getMessage());
+                    closeQuietly(channel);
+                }
+            });
+        }
+
+        // runs the task on this loop's thread
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        boolean inEventLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        @Override
+        public void run() {
+            while (!closed) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    Log.error("IOException: " + e.getMessage());
+                    return;
+                } catch (ClosedSelectorException e) {
+                    return;
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        Log.error("Event loop task failed: " + e);
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Session session = (Session) key.attachment();
+                    try {
+                        if (key.isValid() && key.isWritable()) session.flush();
+                        if (key.isValid() && key.isReadable()) session.read();
+                    } catch (IOException | RuntimeException e) {
+                        session.close(e);
+                    }
+                }
+            }
+        }
+
+        void close() {
+            closed = true;
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    closeQuietly(key.channel());
+                }
+                selector.close();
+            } catch (IOException | ClosedSelectorException ignored) {
+            }
+        }
+    }
+
+    private class Session {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        // null until the client has sent the magic and its codec
+        private Codec codec;
+        private final Deque<ByteBuffer> out = new ArrayDeque<>();
+        private long queuedBytes;
+        private boolean flushScheduled;
+        private volatile boolean closed;
+        // flow controlled responses of this connection that are still being written, by request id
+        private final Map<Integer, FramedResponseStream> flowControlled = new ConcurrentHashMap<>();
+        private final AtomicInteger queuedRequests = new AtomicInteger();
+
+        Session(EventLoop loop, SocketChannel channel) throws IOException {
+            this.loop = loop;
+            this.channel = channel;
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            this.key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+        }
+
+        void read() throws IOException {
+            if (channel.read(in) < 0) {
+                close(null);
+                return;
+            }
+            in.flip();
+            if (codec == null) {
+                if (in.remaining() >= 4 && in.getInt(in.position()) != FramedProtocol.MAGIC) {
+                    handOff();
+                    return;
+                }
+                if (in.remaining() < 5) {
+                    in.compact();
+                    return;
+                }
+                in.getInt();
+                codec = Codec.forId(in.get());
+                enqueue(new ByteBuffer[]{ByteBuffer.wrap(new byte[]{codec.getId()})});
+            }
+            int needed = 0;
+            while (in.remaining() >= FramedProtocol.HEADER_LENGTH) {
+                int length = in.getInt(in.position() + 5);
+                if (length < 0 || length > FramedProtocol.MAX_FRAME_LENGTH) {
+                    throw new IOException("Invalid frame length " + length);
+                }
+                int frameLength = FramedProtocol.HEADER_LENGTH + length;
+                if (in.remaining() < frameLength) {
+                    needed = frameLength;
+                    break;
+                }
+                int requestId = in.getInt();
+                byte flags = in.get();
+                in.getInt();
+                // decoded from a copy, the read buffer is reused right away
+                byte[] payload = new byte[length];
+                in.get(payload);
+                dispatch(new FramedProtocol.Frame(requestId, flags, codec.decode(ByteBuffer.wrap(payload)), frameLength));
+            }
+            in.compact();
+            if (needed > in.capacity()) {
+                in.flip();
+                in = ByteBuffer.allocate(needed).put(in);
+            }
+        }
+
+        private void dispatch(FramedProtocol.Frame frame) {
+            metrics.bytesIn(frame.getLength());
+            if (frame.isCredit()) {
+                FramedResponseStream stream = flowControlled.get(frame.getRequestId());
+                if (stream != null) {
+                    stream.grant(frame.getPayload() instanceof Integer ? (Integer) frame.getPayload() : 0);
+                }
+                return;
+            }
+            Log.debug(() -> "Read data : " + frame.getPayload());
+            metrics.requestStarted();
+            FramedResponseStream stream = new FramedResponseStream(this::write, frame, metrics, System.nanoTime(),
+                    () -> flowControlled.remove(frame.getRequestId()));
+            Object inline = frame.isFlowControlled() ? null : handler.processInline(frame.getPayload());
+            if (inline != null) {
+                stream.finish(inline);
+                return;
+            }
+            if (frame.isFlowControlled()) flowControlled.put(frame.getRequestId(), stream);
+            if (queuedRequests.incrementAndGet() == MAX_QUEUED_REQUESTS) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+            workers.execute(() -> {
+                try {
+                    handler.processStream(frame.getPayload(), stream);
+                } catch (IOException e) {
+                    if (!stream.isCancelled() && !closed) Log.warn("IOException: " + e.getMessage());
+                } finally {
+                    stream.finish();
+                    if (queuedRequests.decrementAndGet() == MAX_QUEUED_REQUESTS - 1) {
+                        loop.execute(this::resumeReading);
+                    }
+                }
+            });
+        }
+
+        private void resumeReading() {
+            if (!closed && key.isValid()) key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+
+        private int write(int requestId, byte flags, Object payload) throws IOException {
+            return enqueue(FramedProtocol.encodeFrame(requestId, flags, payload, codec));
+        }
+
+        // may be called from any thread, the event loop does the actual writing
+        private int enqueue(ByteBuffer[] buffers) throws IOException {
+            int length = 0;
+            for (ByteBuffer buffer : buffers) {
+                length += buffer.remaining();
+            }
+            boolean schedule;
+            synchronized (this) {
+                // a producer off the event loop waits for a slow client rather than piling its data up here
+                while (queuedBytes > MAX_QUEUED_BYTES && !closed && !loop.inEventLoop()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for the client to catch up");
+                    }
+                }
+                if (closed) throw new IOException("Connection is closed");
+                Collections.addAll(out, buffers);
+                queuedBytes += length;
+                schedule = !flushScheduled;
+                flushScheduled = true;
+            }
+            if (schedule) loop.execute(this::flushOrClose);
+            return length;
+        }
+
+        private void flushOrClose() {
+            try {
+                flush();
+            } catch (IOException e) {
+                close(e);
+            }
+        }
+
+        void flush() throws IOException {
+            if (closed) return;
+            synchronized (this) {
+                flushScheduled = false;
+            }
+            ByteBuffer[] batch = new ByteBuffer[MAX_WRITE_BATCH];
+            while (true) {
+                int count = 0;
+                synchronized (this) {
+                    for (ByteBuffer buffer : out) {
+                        if (count == batch.length) break;
+                        batch[count++] = buffer;
+                    }
+                }
+                if (count == 0) break;
+                long written = channel.write(batch, 0, count);
+                boolean socketFull = batch[count - 1].hasRemaining();
+                synchronized (this) {
+                    while (!out.isEmpty() && !out.peekFirst().hasRemaining()) {
+                        out.pollFirst();
+                    }
+                    queuedBytes -= written;
+                    notifyAll();
+                }
+                if (socketFull) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            if (key.isValid()) key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+
+        // a plain ObjectStream client, served the blocking way with the bytes read so far put back in front
+        private void handOff() {
+            byte[] prefix = new byte[in.remaining()];
+            in.get(prefix);
+            key.cancel();
+            // the channel may only block again once the selector has dropped the key, which the next select does
+            loop.execute(() -> objectStreamSessions.execute(() -> serveObjectStream(prefix)));
+        }
+
+        private void serveObjectStream(byte[] prefix) {
+            try (SocketChannel socket = channel) {
+                socket.configureBlocking(true);
+                InputStream input = new SequenceInputStream(new ByteArrayInputStream(prefix), Channels.newInputStream(socket));
+                ObjectStreamSession.serve(handler, workers, metrics, input, Channels.newOutputStream(socket));
+            } catch (EOFException e) {
+                // peer closed its connection
+            } catch (IOException e) {
+                Log.warn("IOException: " + e.getMessage());
+            } catch (ClassNotFoundException e) {
+                Log.warn("ClassNotFoundException: " + e.getMessage());
+            } catch (InterruptedException | ExecutionException e) {
+                Log.warn("Request failed: " + e);
+            }
+        }
+
+        void close(Exception cause) {
+            if (closed) return;
+            closed = true;
+            key.cancel();
+            closeQuietly(channel);
+            // nobody is left to grant credit
+            for (FramedResponseStream stream : flowControlled.values()) {
+                stream.grant(0);
+            }
+            synchronized (this) {
+                out.clear();
+                queuedBytes = 0;
+                notifyAll();
+            }
+            if (cause != null) Log.warn("IOException: " + cause.getMessage());
+        }
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package util;
+
+/**
+ * Phi accrual failure detector of one peer. It keeps the intervals between the last heartbeats that arrived
+ * and turns the time since the latest one into phi, the minus log10 of the chance that a heartbeat still
+ * comes this late, so a peer is suspected sooner when its heartbeats used to be regular. The standard
+ * deviation is never taken below {@code minStdDevMillis}, which keeps a perfectly regular peer from being
+ * suspected on the first bit of jitter.
+ */
+public class FailureDetector {
+
+    private final long[] intervals;
+    private final double minStdDevMillis;
+    private int count;
+    private int next;
+    private long sum;
+    private long squares;
+    private long lastArrival;
+
+    // the first interval is assumed to be what the peer was asked for
+    public FailureDetector(int windowSize, long expectedIntervalMillis, double minStdDevMillis, long now) {
+        this.intervals = new long[windowSize];
+        this.minStdDevMillis = minStdDevMillis;
+        this.lastArrival = now;
+        add(expectedIntervalMillis);
+    }
+
+    public synchronized void heartbeat(long now) {
+        add(Math.max(0, now - lastArrival));
+        lastArrival = now;
+    }
+
+    private void add(long interval) {
+        if (count == intervals.length) {
+            long dropped = intervals[next];
+            sum -= dropped;
+            squares -= dropped * dropped;
+        } else {
+            count++;
+        }
+        intervals[next] = interval;
+        next = (next + 1) % intervals.length;
+        sum += interval;
+        squares += interval * interval;
+    }
+
+    public synchronized double phi(long now) {
+        double mean = (double) sum / count;
+        double variance = (double) squares / count - mean * mean;
+        double stdDev = Math.max(Math.sqrt(Math.max(variance, 0)), minStdDevMillis);
+        // logistic approximation of the normal distribution's tail
+        double y = (now - lastArrival - mean) / stdDev;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (now - lastArrival > mean) return -Math.log10(e / (1.0 + e));
+        return -Math.log10(1.0 - 1.0 / (1.0 + e));
+    }
+
+    public synchronized long getLastArrival() {
+        return lastArrival;
+    }
+}
@@ -0,0 +1,139 @@
+package util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Wire format of persistent connections. A client opens with {@link #MAGIC} followed by the id of the
+ * {@link Codec} it would like to use, and the server answers with the id of the codec it accepted.
+ * After that both sides exchange frames of [int requestId][byte flags][int length][payload]. Responses carry
+ * the id of the request they answer, so any number of requests can be in flight on the same socket and
+ * complete out of order. A response may be streamed as several frames flagged {@link #MORE}, the last frame
+ * of every response has the flag cleared.
+ * <p>
+ * A request flagged {@link #FLOW_CONTROLLED} starts without credit: the server streams an item only for each
+ * unit of credit the client grants with a {@link #CREDIT} frame of the same request id, whose payload is the
+ * Integer number of items. A grant of 0 or less cancels the stream.
+ */
+public class FramedProtocol {
+
+    // "DSP1", chosen so it can never be mistaken for the 0xACED header of a plain ObjectOutputStream
+    public static final int MAGIC = 0x44535031;
+    public static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+    public static final byte MORE = 1;
+    public static final byte FLOW_CONTROLLED = 2;
+    public static final byte CREDIT = 4;
+
+    public static Codec requestCodec(DataOutputStream out, DataInputStream in, Codec preferred) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(preferred.getId());
+        out.flush();
+        return Codec.forId(in.readByte());
+    }
+
+    public static Codec acceptCodec(DataOutputStream out, DataInputStream in) throws IOException {
+        Codec codec = Codec.forId(in.readByte());
+        out.writeByte(codec.getId());
+        out.flush();
+        return codec;
+    }
+
+    public static final int HEADER_LENGTH = 9;
+
+    // both return the number of bytes written, header included
+    public static int writeFrame(DataOutputStream out, int requestId, Object payload, Codec codec) throws IOException {
+        return writeFrame(out, requestId, (byte) 0, payload, codec);
+    }
+
+    public static int writeFrame(DataOutputStream out, int requestId, byte flags, Object payload, Codec codec) throws IOException {
+        ByteBuffer[] buffers = codec.encode(payload);
+        int length = 0;
+        for (ByteBuffer buffer : buffers) {
+            length += buffer.remaining();
+        }
+        out.writeInt(requestId);
+        out.writeByte(flags);
+        out.writeInt(length);
+        WritableByteChannel channel = null;
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasArray()) {
+                out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            } else {
+                // off-heap buffers go through the channel adapter's small transfer buffer
+                if (channel == null) channel = Channels.newChannel(out);
+                ByteBuffer source = buffer.duplicate();
+                while (source.hasRemaining()) {
+                    channel.write(source);
+                }
+            }
+        }
+        out.flush();
+        return HEADER_LENGTH + length;
+    }
+
+    // the whole frame as buffers of its own, header first, for transports that write them out later
+    public static ByteBuffer[] encodeFrame(int requestId, byte flags, Object payload, Codec codec) throws IOException {
+        ByteBuffer[] buffers = codec.encode(payload);
+        ByteBuffer[] frame = new ByteBuffer[buffers.length + 1];
+        int length = 0;
+        for (int i = 0; i < buffers.length; i++) {
+            frame[i + 1] = buffers[i].duplicate();
+            length += buffers[i].remaining();
+        }
+        frame[0] = ByteBuffer.allocate(HEADER_LENGTH);
+        frame[0].putInt(requestId).put(flags).putInt(length).flip();
+        return frame;
+    }
+
+    public static Frame readFrame(DataInputStream in, Codec codec) throws IOException {
+        int requestId = in.readInt();
+        byte flags = in.readByte();
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new Frame(requestId, flags, codec.decode(ByteBuffer.wrap(bytes)), HEADER_LENGTH + length);
+    }
+
+    public static class Frame {
+        private final int requestId;
+        private final byte flags;
+        private final Object payload;
+        private final int length;
+
+        Frame(int requestId, byte flags, Object payload, int length) {
+            this.requestId = requestId;
+            this.flags = flags;
+            this.payload = payload;
+            this.length = length;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public int getRequestId() {
+            return requestId;
+        }
+
+        public boolean hasMore() {
+            return (flags & MORE) != 0;
+        }
+
+        public boolean isFlowControlled() {
+            return (flags & FLOW_CONTROLLED) != 0;
+        }
+
+        public boolean isCredit() {
+            return (flags & CREDIT) != 0;
+        }
+
+        public Object getPayload() {
+            return payload;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Response to one request of a {@link FramedProtocol} connection, whatever transport carries the frames.
+ * Tracks the credit of flow controlled requests and reports the request to the metrics once it is answered.
+ */
+class FramedResponseStream implements ResponseStream {
+
+    interface FrameSink {
+        // returns the number of bytes the frame takes, header included
+        int write(int requestId, byte flags, Object payload) throws IOException;
+    }
+
+    private final FrameSink sink;
+    private final FramedProtocol.Frame request;
+    private final MetricsRegistry metrics;
+    private final long start;
+    private final Runnable onDone;
+    private boolean completed;
+    private boolean pending;
+    private boolean done;
+    // items that may still be sent before the client grants more
+    private long credit;
+    private boolean cancelled;
+    private Runnable resume;
+
+    FramedResponseStream(FrameSink sink, FramedProtocol.Frame request, MetricsRegistry metrics, long start, Runnable onDone) {
+        this.sink = sink;
+        this.request = request;
+        this.metrics = metrics;
+        this.start = start;
+        this.onDone = onDone;
+        this.credit = request.isFlowControlled() ? 0 : Long.MAX_VALUE;
+    }
+
+    void grant(int items) {
+        Runnable toResume;
+        synchronized (this) {
+            if (items > 0) {
+                credit += items;
+            } else {
+                cancelled = true;
+            }
+            notifyAll();
+            toResume = resume;
+        }
+        if (toResume != null) toResume.run();
+    }
+
+    synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    // blocks the handler until the client has room for another item
+    private synchronized void awaitCredit() throws IOException {
+        try {
+            while (credit == 0 && !cancelled) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for credit");
+        }
+        checkCancelled();
+        credit--;
+    }
+
+    private void checkCancelled() throws IOException {
+        if (cancelled) throw new IOException("Request " + request.getRequestId() + " was cancelled");
+    }
+
+    @Override
+    public void next(Object item) throws IOException {
+        awaitCredit();
+        metrics.bytesOut(sink.write(request.getRequestId(), FramedProtocol.MORE, item));
+    }
+
+    @Override
+    public boolean tryNext(Object item) throws IOException {
+        synchronized (this) {
+            checkCancelled();
+            if (credit == 0) return false;
+            credit--;
+        }
+        metrics.bytesOut(sink.write(request.getRequestId(), FramedProtocol.MORE, item));
+        return true;
+    }
+
+    @Override
+    public void onCredit(Runnable resume) {
+        synchronized (this) {
+            this.resume = resume;
+        }
+    }
+
+    @Override
+    public void complete(Object result) throws IOException {
+        synchronized (this) {
+            if (completed) return;
+            completed = true;
+        }
+        metrics.bytesOut(sink.write(request.getRequestId(), (byte) 0, result));
+        Log.debug(() -> "Responded with : " + result);
+    }
+
+    @Override
+    public void completeWith(CompletionStage<?> result) {
+        synchronized (this) {
+            pending = true;
+        }
+        result.whenComplete((value, error) -> {
+            try {
+                complete(error == null ? value : null);
+            } catch (IOException ignored) {
+                // connection is gone
+            } finally {
+                done();
+            }
+        });
+    }
+
+    // called once the handler returns; a handler that failed or was cancelled still ends the response
+    void finish() {
+        synchronized (this) {
+            if (pending) return;
+        }
+        finish(null);
+    }
+
+    // ends the response with this result, unless the handler completed it already
+    void finish(Object result) {
+        try {
+            complete(result);
+        } catch (IOException ignored) {
+            // connection is gone
+        } finally {
+            done();
+        }
+    }
+
+    private void done() {
+        synchronized (this) {
+            if (done) return;
+            done = true;
+            resume = null;
+        }
+        metrics.requestFinished(request.getPayload(), System.nanoTime() - start);
+        if (onDone != null) onDone.run();
+    }
+}
@@ -0,0 +1,34 @@
+package util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+public class JavaCodec implements Codec {
+
+    public static final byte ID = 0;
+    public static final JavaCodec INSTANCE = new JavaCodec();
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    @Override
+    public ByteBuffer[] encode(Object message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(message);
+        }
+        return new ByteBuffer[]{ByteBuffer.wrap(bytes.toByteArray())};
+    }
+
+    @Override
+    public Object decode(ByteBuffer payload) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(
+                new ByteArrayInputStream(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining()))) {
+            return in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unknown class in payload: " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package util;
+
+import java.util.function.Supplier;
+
+/**
+ * Level-gated console logging. Per-request messages go through the {@link Supplier} overloads so that
+ * nothing is formatted unless the level is enabled. The level is set with -Dlog.level=error|warn|info|debug.
+ */
+public final class Log {
+
+    public static final int ERROR = 0, WARN = 1, INFO = 2, DEBUG = 3;
+
+    private static volatile int level = parse(System.getProperty("log.level", "info"));
+
+    private Log() {
+    }
+
+    public static void setLevel(String name) {
+        level = parse(name);
+    }
+
+    public static boolean isDebugEnabled() {
+        return level >= DEBUG;
+    }
+
+    public static void debug(Supplier<String> message) {
+        if (level >= DEBUG) System.out.println(message.get());
+    }
+
+    public static void info(String message) {
+        if (level >= INFO) System.out.println(message);
+    }
+
+    public static void warn(String message) {
+        if (level >= WARN) System.out.println(message);
+    }
+
+    public static void error(String message) {
+        System.out.println(message);
+    }
+
+    private static int parse(String name) {
+        switch (name.toLowerCase()) {
+            case "error":
+                return ERROR;
+            case "warn":
+                return WARN;
+            case "debug":
+                return DEBUG;
+            default:
+                return INFO;
+        }
+    }
+}
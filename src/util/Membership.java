@@ -0,0 +1,179 @@
+package util;
+
+import shared.Heartbeat;
+import shared.NodeInfo;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+
+/**
+ * The peers a node watches and whether each is up. A peer joins with its address and is then pinged with a
+ * {@link Heartbeat} every {@code intervalMillis}. Until it first answers it is judged as if one answer were
+ * due {@code graceMillis} after it joined, so a peer that is still starting is left alone but one that is dead
+ * from the start still goes down. After that every answer feeds its {@link FailureDetector}, and it is down as
+ * soon as phi reaches {@code threshold}, which with the defaults takes a few hundred milliseconds of silence.
+ * A peer that answers again is up again. Listeners hear of every
+ * change, on the heartbeat thread. Nodes answer heartbeats on the thread that reads them, see
+ * {@link RequestHandler#processInline}, so a node busy streaming still answers in time.
+ */
+public class Membership {
+
+    public static final long DEFAULT_INTERVAL = 100;
+    public static final double DEFAULT_THRESHOLD = 8;
+    public static final long DEFAULT_GRACE = 3000;
+    static final int WINDOW_SIZE = 100;
+
+    private final NodeInfo self;
+    private final ConnectionPool connectionPool;
+    private final MetricsRegistry metrics;
+    private final long intervalMillis;
+    private final double threshold;
+    private final long graceMillis;
+    private final Map<NodeInfo, Member> members = new ConcurrentHashMap<>();
+    private final List<BiConsumer<NodeInfo, Boolean>> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor(SocketServer.namedThreads("heartbeat"));
+    // a ping may have to connect first, which must not hold up the pings to everybody else
+    private final ExecutorService pings = Executors.newCachedThreadPool(SocketServer.namedThreads("ping"));
+    private volatile boolean started;
+
+    // tuned with -Dmembership.interval (ms), -Dmembership.phi and -Dmembership.grace (ms)
+    public Membership(NodeInfo self, ConnectionPool connectionPool, MetricsRegistry metrics) {
+        this(self, connectionPool, metrics, Long.getLong("membership.interval", DEFAULT_INTERVAL),
+                Double.parseDouble(System.getProperty("membership.phi", String.valueOf(DEFAULT_THRESHOLD))),
+                Long.getLong("membership.grace", DEFAULT_GRACE));
+    }
+
+    public Membership(NodeInfo self, ConnectionPool connectionPool, MetricsRegistry metrics, long intervalMillis,
+                      double threshold, long graceMillis) {
+        this.self = self;
+        this.connectionPool = connectionPool;
+        this.metrics = metrics;
+        this.intervalMillis = intervalMillis;
+        this.threshold = threshold;
+        this.graceMillis = graceMillis;
+        metrics.gauge("membership.members", members::size);
+        metrics.gauge("membership.down", () -> members.values().stream().filter(member -> !member.up).count());
+    }
+
+    public synchronized void start() {
+        if (started) return;
+        started = true;
+        heartbeats.scheduleWithFixedDelay(this::beat, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // a peer that has not answered yet may still be starting, it is up until its grace is over
+    public void join(NodeInfo peer) {
+        if (peer == null || peer.equals(self)) return;
+        if (members.putIfAbsent(peer, new Member(peer)) == null) Log.info("Watching " + peer);
+    }
+
+    public void leave(NodeInfo peer) {
+        if (members.remove(peer) != null) Log.info("No longer watching " + peer);
+    }
+
+    public void onChange(BiConsumer<NodeInfo, Boolean> listener) {
+        listeners.add(listener);
+    }
+
+    // peers nobody watches are assumed up, so only evidence takes a node out of the routes
+    public boolean isAvailable(NodeInfo peer) {
+        Member member = peer == null ? null : members.get(peer);
+        return member == null || member.up;
+    }
+
+    public double phi(NodeInfo peer) {
+        Member member = members.get(peer);
+        return member == null ? 0 : member.phi(System.currentTimeMillis());
+    }
+
+    // the answer to a ping
+    public Heartbeat heartbeat() {
+        return new Heartbeat(self);
+    }
+
+    private void beat() {
+        long now = System.currentTimeMillis();
+        for (Member member : members.values()) {
+            if (!member.pinging) {
+                member.pinging = true;
+                pings.execute(() -> ping(member));
+            }
+            boolean up = member.phi(now) < threshold;
+            if (up == member.up) continue;
+            member.up = up;
+            metrics.counter(up ? "membership.recovered" : "membership.failed").increment();
+            Log.warn(member.node + (up ? " is up again" : " is down, silent for "
+                    + (now - member.detector.getLastArrival()) + " ms"));
+            for (BiConsumer<NodeInfo, Boolean> listener : listeners) {
+                try {
+                    listener.accept(member.node, up);
+                } catch (RuntimeException e) {
+                    Log.error("Membership listener failed on " + member.node + " : " + e);
+                }
+            }
+        }
+    }
+
+    // failures are not reported, a peer that does not answer simply accrues phi; pings stay out of the
+    // upstream latencies, which are about requests
+    private void ping(Member member) {
+        CompletableFuture<Object> response;
+        try {
+            response = connectionPool.get(member.node.getIp(), member.node.getPort()).stream(heartbeat(), null);
+        } catch (IOException e) {
+            member.pinging = false;
+            return;
+        }
+        response.orTimeout(Math.max(intervalMillis * 10, 1000), TimeUnit.MILLISECONDS)
+                .whenComplete((answer, error) -> {
+                    if (answer instanceof Heartbeat) member.answered(System.currentTimeMillis());
+                    member.pinging = false;
+                });
+    }
+
+    public List<NodeInfo> getMembers() {
+        return new ArrayList<>(members.keySet());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder("Membership{");
+        long now = System.currentTimeMillis();
+        String separator = "";
+        for (Member member : members.values()) {
+            text.append(separator).append(member.node).append(member.up ? " up" : " down")
+                    .append(String.format(" phi=%.1f", member.phi(now)));
+            separator = ", ";
+        }
+        return text.append('}').toString();
+    }
+
+    private class Member {
+        private final NodeInfo node;
+        // expects the first answer within the grace, then is replaced by one that learns from the real answers
+        private volatile FailureDetector detector;
+        private volatile boolean answeredOnce;
+        private volatile boolean up = true;
+        private volatile boolean pinging;
+
+        Member(NodeInfo node) {
+            this.node = node;
+            this.detector = new FailureDetector(WINDOW_SIZE, graceMillis, intervalMillis, System.currentTimeMillis());
+        }
+
+        synchronized void answered(long now) {
+            if (!answeredOnce) {
+                detector = new FailureDetector(WINDOW_SIZE, intervalMillis, intervalMillis, now);
+                answeredOnce = true;
+            } else {
+                detector.heartbeat(now);
+            }
+        }
+
+        double phi(long now) {
+            return detector.phi(now);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package util;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.*;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters, gauges and latency histograms of one node. Everything is exported as a flat set of
+ * name/value pairs, as text (the "Show me the metrics" request or an optional HTTP endpoint) and
+ * as attributes of one JMX MBean.
+ */
+public class MetricsRegistry {
+
+    private final String node;
+    private final Map<Class<?>, RequestMetrics> requests = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final LongAdder inFlight = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+
+    public MetricsRegistry(String node) {
+        this.node = node;
+        gauge("requests.inflight", inFlight::sum);
+        gauge("bytes.in", bytesIn::sum);
+        gauge("bytes.out", bytesOut::sum);
+    }
+
+    public void requestStarted() {
+        inFlight.increment();
+    }
+
+    // keyed by message class so the per-request path does not build metric names
+    public void requestFinished(Object request, long nanos) {
+        inFlight.decrement();
+        Class<?> type = request == null ? Void.class : request.getClass();
+        requests.computeIfAbsent(type, RequestMetrics::new).latency.record(nanos);
+    }
+
+    public void bytesIn(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    public void bytesOut(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, k -> new LongAdder());
+    }
+
+    public LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, k -> new LatencyHistogram());
+    }
+
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    public Map<String, Number> snapshot() {
+        Map<String, Number> snapshot = new TreeMap<>();
+        for (RequestMetrics metrics : requests.values()) {
+            addHistogram(snapshot, "requests." + metrics.name, metrics.latency);
+        }
+        for (Map.Entry<String, LatencyHistogram> histogram : histograms.entrySet()) {
+            addHistogram(snapshot, histogram.getKey(), histogram.getValue());
+        }
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+            snapshot.put(counter.getKey(), counter.getValue().sum());
+        }
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            snapshot.put(gauge.getKey(), gauge.getValue().getAsLong());
+        }
+        return snapshot;
+    }
+
+    private static void addHistogram(Map<String, Number> snapshot, String name, LatencyHistogram histogram) {
+        snapshot.put(name + ".count", histogram.getCount());
+        snapshot.put(name + ".mean_us", histogram.getMean() / 1000);
+        snapshot.put(name + ".p50_us", histogram.getPercentile(50) / 1000);
+        snapshot.put(name + ".p99_us", histogram.getPercentile(99) / 1000);
+        snapshot.put(name + ".p999_us", histogram.getPercentile(99.9) / 1000);
+        snapshot.put(name + ".max_us", histogram.getMax() / 1000);
+    }
+
+    public String toText() {
+        StringBuilder text = new StringBuilder("# metrics of ").append(node).append('\n');
+        for (Map.Entry<String, Number> metric : snapshot().entrySet()) {
+            text.append(metric.getKey()).append(' ').append(metric.getValue()).append('\n');
+        }
+        return text.toString();
+    }
+
+    public void registerMBean() {
+        try {
+            ObjectName name = new ObjectName("dsprjct:type=Metrics,node=" + ObjectName.quote(node));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (!server.isRegistered(name)) server.registerMBean(new MetricsMBean(), name);
+        } catch (JMException e) {
+            Log.warn("Could not register metrics MBean for " + node + " : " + e.getMessage());
+        }
+    }
+
+    // plain text on http://localhost:<port>/metrics
+    public HttpServer startHttp(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = toText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        Log.info("Metrics of " + node + " on http://localhost:" + port + "/metrics");
+        return server;
+    }
+
+    private static class RequestMetrics {
+        private final String name;
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        RequestMetrics(Class<?> type) {
+            this.name = type.getSimpleName();
+        }
+    }
+
+    private class MetricsMBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Number value = snapshot().get(attribute);
+            if (value == null) throw new AttributeNotFoundException(attribute);
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Number> snapshot = snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                if (snapshot.containsKey(attribute)) list.add(new Attribute(attribute, snapshot.get(attribute)));
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException {
+            throw new MBeanException(new UnsupportedOperationException(actionName));
+        }
+
+        // attributes appear as message types and peers are first seen, so the info is rebuilt on every call
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            Map<String, Number> snapshot = snapshot();
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[snapshot.size()];
+            int i = 0;
+            for (Map.Entry<String, Number> metric : snapshot.entrySet()) {
+                attributes[i++] = new MBeanAttributeInfo(metric.getKey(), metric.getValue().getClass().getName(),
+                        metric.getKey(), true, false, false);
+            }
+            return new MBeanInfo(MetricsMBean.class.getName(), "Metrics of " + node, attributes, null, null, null);
+        }
+    }
+}
@@ -5,100 +5,130 @@ import org.jaudiotagger.audio.AudioFileIO;
 import org.jaudiotagger.tag.FieldKey;
 import org.jaudiotagger.tag.Tag;
 import shared.ArtistName;
+import shared.ChunkSizing;
 import shared.MP3Chunk;
 import shared.SongInfo;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
 
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 
 public class MusicTools {
 
+    public static final Path LIBRARY_PATH = Paths.get("data");
+    public static final Path MANIFEST_PATH = Paths.get("catalog.manifest");
+
     public static Map<ArtistName, List<SongInfo>> loadSongs() {
+        return loadSongs(LIBRARY_PATH, MANIFEST_PATH);
+    }
+
+    public static Map<ArtistName, List<SongInfo>> loadSongs(Path libraryPath, Path manifestPath) {
         Map<ArtistName, List<SongInfo>> result = new HashMap<>();
-        final int chunkSize = 512000;
         try {
 
             Logger.getLogger("org.jaudiotagger").setLevel(Level.OFF);
 
-            List<Path> paths = new ArrayList<>();
-
-            Files.walk(Paths.get("data"))
-                    .filter(Files::isRegularFile)
-                    .forEach(paths::add);
-
-            for (Path path : paths) {
-                String trackName = "";
-                String artistName = "";
-                String albumInfo = "";
-                String genre = "";
-
-                AudioFile f = AudioFileIO.read(new File(path.toString()));
-                Tag tag = f.getTag();
-
-                if (tag != null) {
-                    artistName = tag.getFirst(FieldKey.ARTIST);
-                    albumInfo = tag.getFirst(FieldKey.ALBUM);
-                    trackName = tag.getFirst(FieldKey.TITLE);
-                    genre = tag.getFirst(FieldKey.GENRE);
-
-                    if (!artistName.isEmpty()) {
-                        List<SongInfo> artistSongs = new ArrayList<>();
-                        SongInfo songInfo = new SongInfo(
-                                trackName,
-                                artistName,
-                                albumInfo,
-                                genre,
-                                path.toString(),
-                                (int) Math.ceil(f.getFile().length() * 1f / chunkSize)
-                        );
-
-
-                        ArtistName artist = artistExists(artistName, result.keySet());
-                        if (artist != null) {
-                            artistSongs = result.get(artist);
-                        } else {
-                            artist = new ArtistName();
-                            artist.setArtistName(artistName);
-                        }
-                        artistSongs.add(songInfo);
-                        result.put(artist, artistSongs);
-                    }
-                }
+            List<Path> paths;
+            try (Stream<Path> files = Files.walk(libraryPath)) {
+                paths = files.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+            }
+
+            CatalogManifest manifest = CatalogManifest.read(manifestPath);
+            AtomicInteger parsed = new AtomicInteger();
+
+            // tag parsing dominates startup and every file is independent, so spread it over all cores
+            List<CatalogManifest.Entry> entries = paths.parallelStream()
+                    .map(path -> scanFile(path, manifest, parsed))
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toList());
+
+            Map<String, List<SongInfo>> songsByArtist = new HashMap<>();
+            for (CatalogManifest.Entry entry : entries) {
+                if (entry.getArtist().isEmpty()) continue;
+                SongInfo songInfo = new SongInfo(
+                        entry.getTitle(),
+                        entry.getArtist(),
+                        entry.getAlbum(),
+                        entry.getGenre(),
+                        entry.getPath(),
+                        entry.getSize(),
+                        ChunkSizing.forSong(entry.getSize(), entry.getBitrate())
+                );
+                songsByArtist.computeIfAbsent(entry.getArtist(), artistName -> new ArrayList<>()).add(songInfo);
+            }
+            for (Map.Entry<String, List<SongInfo>> artistSongs : songsByArtist.entrySet()) {
+                ArtistName artist = new ArtistName();
+                artist.setArtistName(artistSongs.getKey());
+                result.put(artist, artistSongs.getValue());
             }
+
+            if (parsed.get() > 0 || manifest.size() != entries.size()) {
+                CatalogManifest.write(manifestPath, entries);
+            }
+            System.out.println("Scanned " + paths.size() + " files, parsed tags of " + parsed.get());
         } catch (Exception e) {
             e.printStackTrace();
         }
         return result;
     }
 
-    private static ArtistName artistExists(String artistName, Set<ArtistName> artistNames) {
+    private static CatalogManifest.Entry scanFile(Path path, CatalogManifest manifest, AtomicInteger parsed) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            long lastModified = attributes.lastModifiedTime().toMillis();
+            long size = attributes.size();
+            CatalogManifest.Entry known = manifest.get(path.toString(), lastModified, size);
+            if (known != null) return known;
+
+            String trackName = "";
+            String artistName = "";
+            String albumInfo = "";
+            String genre = "";
+            int bitrate = 0;
+
+            AudioFile f = AudioFileIO.read(new File(path.toString()));
+            Tag tag = f.getTag();
+            parsed.incrementAndGet();
+            if (f.getAudioHeader() != null) {
+                bitrate = (int) f.getAudioHeader().getBitRateAsNumber();
+            }
 
-        for (ArtistName artist : artistNames) {
-            if (artistName.equals(artist.getArtistName())) {
-                return artist;
+            if (tag != null) {
+                artistName = Objects.toString(tag.getFirst(FieldKey.ARTIST), "");
+                albumInfo = Objects.toString(tag.getFirst(FieldKey.ALBUM), "");
+                trackName = Objects.toString(tag.getFirst(FieldKey.TITLE), "");
+                genre = Objects.toString(tag.getFirst(FieldKey.GENRE), "");
             }
+            // files without an artist are remembered too, so they are not parsed again on every start
+            return new CatalogManifest.Entry(path.toString(), lastModified, size, trackName, artistName, albumInfo, genre, bitrate);
+        } catch (Exception e) {
+            System.out.println("Skipping unreadable file " + path + " : " + e.getMessage());
+            return null;
         }
-        return null;
     }
 
+    // always numberOfParts lists, as even as they can be, some empty when there are fewer artists than parts
     public static Collection<List<ArtistName>> splitList(int numberOfParts, List<ArtistName> artistNames) {
-
-        AtomicInteger counter = new AtomicInteger(0);
-
-        Collection<List<ArtistName>> partitioned = artistNames.stream()
-                .collect(Collectors.groupingBy(obj -> counter.getAndIncrement() / ((artistNames.size()) / numberOfParts)))
-                .values();
-
+        List<List<ArtistName>> partitioned = new ArrayList<>(numberOfParts);
+        for (int i = 0; i < numberOfParts; i++) {
+            int from = (int) ((long) i * artistNames.size() / numberOfParts);
+            int to = (int) ((long) (i + 1) * artistNames.size() / numberOfParts);
+            partitioned.add(new ArrayList<>(artistNames.subList(from, to)));
+        }
         return partitioned;
     }
 
@@ -112,8 +142,9 @@ public class MusicTools {
         return null;
     }
 
-    public static List<MP3Chunk> splitSongToChunks(SongInfo song, int chunkSize) {
+    public static List<MP3Chunk> splitSongToChunks(SongInfo song) {
         List<MP3Chunk> chunks = new ArrayList<>();
+        int chunkSize = song.getChunkSize();
         try {
             int partNo = 0;
             byte[] bytes = Files.readAllBytes(Path.of(song.getSongPath()));
@@ -134,6 +165,26 @@ public class MusicTools {
         return chunks;
     }
 
+    // reads just the bytes of one part with positional reads, instead of loading and splitting the whole file
+    public static MP3Chunk readChunk(SongInfo song, int partNo) {
+        int chunkSize = song.getChunkSize();
+        try (FileChannel channel = FileChannel.open(Path.of(song.getSongPath()), StandardOpenOption.READ)) {
+            long from = ChunkSizing.offsetOf(partNo, chunkSize);
+            long fileSize = channel.size();
+            if (partNo < 0 || from >= fileSize) {
+                return null;
+            }
+            ByteBuffer musicFileExtract = ByteBuffer.allocate((int) Math.min(chunkSize, fileSize - from));
+            while (musicFileExtract.hasRemaining()) {
+                if (channel.read(musicFileExtract, from + musicFileExtract.position()) < 0) break;
+            }
+            return new MP3Chunk(song, partNo, musicFileExtract.array());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
     public static List<SongInfo> getSongsOfArtist(ArtistName artist, Map<ArtistName, List<SongInfo>> songsDB) {
 //        System.out.println("Music Tools : DB is " + songsDB);
 //        System.out.println("Songs of " + artist + " are " + songsDB.get(artist));
@@ -0,0 +1,57 @@
+package util;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * One object in, one object out, then close: what clients without a persistent connection speak.
+ */
+class ObjectStreamSession {
+
+    static void serve(RequestHandler handler, ExecutorService workers, MetricsRegistry metrics, InputStream in, OutputStream out)
+            throws IOException, ClassNotFoundException, InterruptedException, ExecutionException {
+        ObjectInputStream input = new ObjectInputStream(in);
+        ObjectOutputStream output = new ObjectOutputStream(out);
+
+        Object inputObject = input.readObject();
+        Log.debug(() -> "Read data : " + inputObject);
+        long start = System.nanoTime();
+        metrics.requestStarted();
+
+        // a plain ObjectStream client can only take one reply, so streamed items are collected into a list
+        List<Object> items = new ArrayList<>();
+        CompletableFuture<Object> result = new CompletableFuture<>();
+        workers.submit(() -> {
+            handler.processStream(inputObject, new ResponseStream() {
+                @Override
+                public void next(Object item) {
+                    synchronized (items) {
+                        items.add(item);
+                    }
+                }
+
+                @Override
+                public void complete(Object finalResult) {
+                    result.complete(finalResult);
+                }
+            });
+            return null;
+        }).get();
+        // every handler has completed by the time it returns here, at the latest through completeWith
+        Object finalResult = result.getNow(null);
+        Object response;
+        synchronized (items) {
+            response = items.isEmpty() ? finalResult : items;
+        }
+
+        metrics.requestFinished(inputObject, System.nanoTime() - start);
+
+        output.writeObject(response);
+        Log.debug(() -> "Responded with : " + response);
+        output.flush();
+    }
+}
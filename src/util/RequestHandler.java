@@ -0,0 +1,19 @@
+package util;
+
+import java.io.IOException;
+
+public interface RequestHandler {
+
+    Object processData(Object data);
+
+    // answers a request on the thread that read it, ahead of whatever waits for the workers, or returns null to
+    // leave it to them; only for requests that must be answered however busy the node is and take no time
+    default Object processInline(Object data) {
+        return null;
+    }
+
+    // handlers that answer some requests with several messages override this, everything else is one reply
+    default void processStream(Object data, ResponseStream stream) throws IOException {
+        stream.complete(processData(data));
+    }
+}
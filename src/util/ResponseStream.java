@@ -0,0 +1,39 @@
+package util;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Where a handler writes its answer to one request: any number of items followed by exactly one result.
+ * A handler either completes the stream before it returns or hands the pending result to
+ * {@link #completeWith}, so that answers waiting on other nodes do not hold a thread.
+ */
+public interface ResponseStream {
+
+    void next(Object item) throws IOException;
+
+    void complete(Object result) throws IOException;
+
+    // sends the item if the receiver has credit for it and returns false otherwise, see onCredit
+    default boolean tryNext(Object item) throws IOException {
+        next(item);
+        return true;
+    }
+
+    // runs whenever the receiver grants credit or cancels, so whoever got false from tryNext can carry on
+    default void onCredit(Runnable resume) {
+    }
+
+    // completes with the result once it is there, or with null if it fails
+    default void completeWith(CompletionStage<?> result) throws IOException {
+        Object value;
+        try {
+            value = result.toCompletableFuture().join();
+        } catch (CompletionException | CancellationException e) {
+            value = null;
+        }
+        complete(value);
+    }
+}
@@ -0,0 +1,123 @@
+package util;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * How a client repeats a call that failed or got an answer it cannot use. Every attempt has
+ * {@code attemptTimeoutMillis} to answer, the next one starts after an exponential backoff with full jitter,
+ * and the call gives up after {@code maxAttempts} or once {@code deadlineMillis} have passed, failing with an
+ * {@link IOException}. Cancelling the future of a call stops its retries and cancels the request in flight,
+ * which its connection then forgets. Starting an attempt may mean connecting first, so attempts start on a
+ * shared pool with their timeout already running, and only the waits between them are scheduled on one
+ * shared daemon thread.
+ */
+public class RetryPolicy {
+
+    private static final ScheduledExecutorService RETRIES = Executors.newSingleThreadScheduledExecutor(SocketServer.namedThreads("retry"));
+    private static final ExecutorService ATTEMPTS = Executors.newCachedThreadPool(SocketServer.namedThreads("attempt"));
+
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final long attemptTimeoutMillis;
+    private final long deadlineMillis;
+
+    public RetryPolicy(int maxAttempts, long initialBackoffMillis, long maxBackoffMillis, long attemptTimeoutMillis, long deadlineMillis) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.attemptTimeoutMillis = attemptTimeoutMillis;
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    // -Dclient.retry.attempts (10), -Dclient.retry.backoff and .backoff.max (100 and 5000 ms),
+    // -Dclient.call.timeout per attempt (5000 ms) and -Dclient.call.deadline for all of them (60000 ms)
+    public static RetryPolicy fromSystemProperties() {
+        return new RetryPolicy(Integer.getInteger("client.retry.attempts", 10),
+                Long.getLong("client.retry.backoff", 100), Long.getLong("client.retry.backoff.max", 5000),
+                Long.getLong("client.call.timeout", 5000), Long.getLong("client.call.deadline", 60000));
+    }
+
+    // repeats the call until it answers with something accepted; what names the call in the logs
+    public <T> CompletableFuture<T> call(Supplier<CompletableFuture<T>> call, Predicate<? super T> accepted, String what) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        attempt(call, accepted, what, 1, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis), result);
+        return result;
+    }
+
+    private <T> void attempt(Supplier<CompletableFuture<T>> call, Predicate<? super T> accepted, String what,
+                             int attemptNo, long deadline, CompletableFuture<T> result) {
+        if (result.isDone()) return;
+        // the timeout covers connecting as well as the answer
+        CompletableFuture<T> inFlight = new CompletableFuture<>();
+        result.whenComplete((response, error) -> inFlight.cancel(false));
+        inFlight.orTimeout(Math.max(1, Math.min(attemptTimeoutMillis, millisUntil(deadline))), TimeUnit.MILLISECONDS)
+                .whenComplete((response, error) -> {
+                    if (result.isDone()) return;
+                    if (error == null && accepted.test(response)) {
+                        result.complete(response);
+                        return;
+                    }
+                    String failure = error != null ? describe(error) : "answered " + response;
+                    long backoff = backoff(attemptNo);
+                    if (attemptNo >= maxAttempts || millisUntil(deadline) <= backoff) {
+                        result.completeExceptionally(new IOException(what + " failed after " + attemptNo + " attempts : " + failure));
+                        return;
+                    }
+                    Log.info(what + " failed (" + failure + "), attempt " + (attemptNo + 1) + " of " + maxAttempts
+                            + " in " + backoff + " ms");
+                    RETRIES.schedule(() -> attempt(call, accepted, what, attemptNo + 1, deadline, result), backoff, TimeUnit.MILLISECONDS);
+                });
+        ATTEMPTS.execute(() -> start(call, inFlight));
+    }
+
+    private static <T> void start(Supplier<CompletableFuture<T>> call, CompletableFuture<T> inFlight) {
+        if (inFlight.isDone()) return;
+        CompletableFuture<T> request;
+        try {
+            request = call.get();
+        } catch (RuntimeException e) {
+            inFlight.completeExceptionally(e);
+            return;
+        }
+        // an attempt that timed out or was cancelled cancels its request, so the connection does not keep it
+        inFlight.whenComplete((response, error) -> request.cancel(false));
+        request.whenComplete((response, error) -> {
+            if (error != null) {
+                inFlight.completeExceptionally(error);
+            } else {
+                inFlight.complete(response);
+            }
+        });
+    }
+
+    // full jitter: anything up to the exponential backoff, so clients that failed together do not retry together
+    long backoff(int attemptNo) {
+        long ceiling = initialBackoffMillis << Math.min(attemptNo - 1, 30);
+        if (ceiling <= 0 || ceiling > maxBackoffMillis) ceiling = maxBackoffMillis;
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    private static long millisUntil(long deadline) {
+        return TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+    }
+
+    private static String describe(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof TimeoutException) return "no answer in time";
+        return cause.getMessage() != null ? cause.getMessage() : cause.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "RetryPolicy{" +
+                "attempts=" + maxAttempts +
+                ", backoff=" + initialBackoffMillis + ".." + maxBackoffMillis + " ms" +
+                ", timeout=" + attemptTimeoutMillis + " ms" +
+                ", deadline=" + deadlineMillis + " ms" +
+                '}';
+    }
+}
@@ -0,0 +1,30 @@
+package util;
+
+import java.net.ServerSocket;
+
+/**
+ * Accepts connections and dispatches their requests to a {@link RequestHandler}, blocking the calling thread.
+ * -Dserver.transport picks the implementation: "blocking" for {@link SocketServer}, a reader thread per
+ * connection, or "eventloop" for {@link EventLoopServer}, a few selector threads for all of them.
+ */
+public interface Server {
+
+    void start(int serverPort);
+
+    // for callers that bound the socket themselves, e.g. to port 0 to get an ephemeral port
+    void start(ServerSocket boundSocket);
+
+    static Server create(RequestHandler handler, ServerMode mode, int poolSize, MetricsRegistry metrics) {
+        String transport = System.getProperty("server.transport", "blocking");
+        switch (transport.toLowerCase()) {
+            case "blocking":
+                return new SocketServer(handler, mode, poolSize, metrics);
+            case "eventloop":
+            case "nio":
+                return new EventLoopServer(handler, mode, poolSize, metrics,
+                        Integer.getInteger("server.eventloops", EventLoopServer.DEFAULT_EVENT_LOOPS));
+            default:
+                throw new IllegalArgumentException("Unknown server transport : " + transport);
+        }
+    }
+}
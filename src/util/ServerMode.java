@@ -0,0 +1,38 @@
+package util;
+
+import java.util.concurrent.*;
+
+public enum ServerMode {
+    SERIAL,
+    POOLED,
+    THREAD_PER_CONNECTION;
+
+    public static ServerMode fromString(String mode) {
+        switch (mode.toLowerCase()) {
+            case "serial":
+                return SERIAL;
+            case "pooled":
+                return POOLED;
+            case "threads":
+            case "thread-per-connection":
+                return THREAD_PER_CONNECTION;
+            default:
+                throw new IllegalArgumentException("Unknown server mode : " + mode);
+        }
+    }
+
+    // the threads handlers run on
+    public ExecutorService createWorkers(int poolSize) {
+        switch (this) {
+            case POOLED:
+                // bounded queue, so a flood of requests backs up into the connection readers instead of the heap
+                return new ThreadPoolExecutor(poolSize, poolSize, 60L, TimeUnit.SECONDS,
+                        new ArrayBlockingQueue<>(poolSize * 16), SocketServer.namedThreads("worker"),
+                        new ThreadPoolExecutor.CallerRunsPolicy());
+            case THREAD_PER_CONNECTION:
+                return Executors.newCachedThreadPool(SocketServer.namedThreads("worker"));
+            default:
+                return Executors.newSingleThreadExecutor(SocketServer.namedThreads("worker"));
+        }
+    }
+}
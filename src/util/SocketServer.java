@@ -0,0 +1,140 @@
+package util;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Blocking transport: a reader thread per connection, handlers on the workers of the {@link ServerMode}.
+ */
+public class SocketServer implements Server {
+
+    public static final int DEFAULT_POOL_SIZE = 64;
+
+    private final RequestHandler handler;
+    private final ServerMode mode;
+    private final int poolSize;
+    private final MetricsRegistry metrics;
+    private ExecutorService connections;
+    private ExecutorService workers;
+
+    public SocketServer(RequestHandler handler, ServerMode mode, int poolSize, MetricsRegistry metrics) {
+        this.handler = handler;
+        this.mode = mode;
+        this.poolSize = poolSize;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void start(int serverPort) {
+        try {
+            start(new ServerSocket(serverPort, 1024));
+        } catch (IOException e) {
+            Log.error("IOException: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void start(ServerSocket boundSocket) {
+        connections = Executors.newCachedThreadPool(namedThreads("connection"));
+        workers = mode.createWorkers(poolSize);
+        try (ServerSocket serverSocket = boundSocket) {
+            Log.info("Server on port " + serverSocket.getLocalPort() + " is accepting clients in " + mode + " mode.");
+            while (true) {
+                Socket clientSocket = serverSocket.accept();
+                connections.execute(() -> serve(clientSocket));
+            }
+        } catch (IOException e) {
+            Log.error("IOException: " + e.getMessage());
+        } finally {
+            connections.shutdownNow();
+            workers.shutdownNow();
+        }
+    }
+
+    private void serve(Socket clientSocket) {
+        try (Socket socket = clientSocket) {
+            BufferedInputStream input = new BufferedInputStream(socket.getInputStream());
+            input.mark(4);
+            int magic = new DataInputStream(input).readInt();
+            if (magic == FramedProtocol.MAGIC) {
+                serveFramed(socket, new DataInputStream(input));
+            } else {
+                input.reset();
+                ObjectStreamSession.serve(handler, workers, metrics, input, socket.getOutputStream());
+            }
+        } catch (EOFException e) {
+            // peer closed its connection
+        } catch (IOException e) {
+            Log.warn("IOException: " + e.getMessage());
+        } catch (ClassNotFoundException e) {
+            Log.warn("ClassNotFoundException: " + e.getMessage());
+        } catch (InterruptedException | ExecutionException e) {
+            Log.warn("Request failed: " + e);
+        }
+    }
+
+    private void serveFramed(Socket socket, DataInputStream input) throws IOException {
+        socket.setTcpNoDelay(true);
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        Codec codec = FramedProtocol.acceptCodec(output, input);
+        FramedResponseStream.FrameSink sink = (requestId, flags, payload) -> {
+            synchronized (output) {
+                return FramedProtocol.writeFrame(output, requestId, flags, payload, codec);
+            }
+        };
+        // flow controlled responses of this connection that are still being written, by request id
+        Map<Integer, FramedResponseStream> flowControlled = new ConcurrentHashMap<>();
+        try {
+            while (true) {
+                FramedProtocol.Frame frame = FramedProtocol.readFrame(input, codec);
+                metrics.bytesIn(frame.getLength());
+                if (frame.isCredit()) {
+                    FramedResponseStream stream = flowControlled.get(frame.getRequestId());
+                    if (stream != null) {
+                        stream.grant(frame.getPayload() instanceof Integer ? (Integer) frame.getPayload() : 0);
+                    }
+                    continue;
+                }
+                Log.debug(() -> "Read data : " + frame.getPayload());
+                metrics.requestStarted();
+                FramedResponseStream stream = new FramedResponseStream(sink, frame, metrics, System.nanoTime(),
+                        () -> flowControlled.remove(frame.getRequestId()));
+                Object inline = frame.isFlowControlled() ? null : handler.processInline(frame.getPayload());
+                if (inline != null) {
+                    stream.finish(inline);
+                    continue;
+                }
+                // registered before the next frame is read, so no grant for it can be missed
+                if (frame.isFlowControlled()) flowControlled.put(frame.getRequestId(), stream);
+                workers.execute(() -> {
+                    try {
+                        handler.processStream(frame.getPayload(), stream);
+                    } catch (IOException e) {
+                        if (!stream.isCancelled()) Log.warn("IOException: " + e.getMessage());
+                    } finally {
+                        stream.finish();
+                    }
+                });
+            }
+        } finally {
+            // nobody is left to grant credit
+            for (FramedResponseStream stream : flowControlled.values()) {
+                stream.grant(0);
+            }
+        }
+    }
+
+    public static ThreadFactory namedThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
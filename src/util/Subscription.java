@@ -0,0 +1,38 @@
+package util;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Client end of a flow controlled stream: the peer sends one item per unit of credit granted through
+ * {@link #request}, and {@link #getResult} completes with its final response.
+ */
+public class Subscription {
+
+    private final Connection connection;
+    private final int requestId;
+    private final CompletableFuture<Object> result;
+
+    Subscription(Connection connection, int requestId, CompletableFuture<Object> result) {
+        this.connection = connection;
+        this.requestId = requestId;
+        this.result = result;
+    }
+
+    // a stream with nothing left to send, already finished with this result
+    public static Subscription completed(Object result) {
+        return new Subscription(null, 0, CompletableFuture.completedFuture(result));
+    }
+
+    public void request(int items) {
+        if (items > 0 && connection != null) connection.grant(requestId, items);
+    }
+
+    // the peer stops streaming and answers with a null result
+    public void cancel() {
+        if (connection != null) connection.grant(requestId, 0);
+    }
+
+    public CompletableFuture<Object> getResult() {
+        return result;
+    }
+}
@@ -0,0 +1,120 @@
+package broker;
+
+import org.junit.Test;
+import shared.ChunkRequest;
+import shared.MP3Chunk;
+import shared.SongInfo;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkCacheTest {
+
+    private static final int CHUNK = 100;
+    private static final SongInfo SONG = new SongInfo("Title", "Artist", "Album", "Genre", "song.mp3", 1 << 20, CHUNK);
+
+    @Test
+    public void staysWithinItsByteBudget() {
+        ChunkCache cache = new ChunkCache(10 * CHUNK, new LruPolicy<>(), false);
+        for (int part = 0; part < 25; part++) {
+            put(cache, part);
+            assertTrue(cache.getUsedBytes() <= cache.getMaxBytes());
+        }
+        assertEquals(10, cache.getEntries());
+        assertEquals(10 * CHUNK, cache.getUsedBytes());
+        assertEquals(15, cache.getEvictions());
+    }
+
+    @Test
+    public void skipsChunksLargerThanTheBudget() {
+        ChunkCache cache = new ChunkCache(CHUNK - 1, new LruPolicy<>(), false);
+        put(cache, 0);
+        assertEquals(0, cache.getEntries());
+        assertEquals(0, cache.getUsedBytes());
+    }
+
+    @Test
+    public void countsHitsAndMisses() {
+        ChunkCache cache = new ChunkCache(10 * CHUNK, new LruPolicy<>(), false);
+        assertNull(cache.get(request(0)));
+        put(cache, 0);
+        MP3Chunk chunk = cache.get(request(0));
+        assertNotNull(chunk);
+        assertEquals(0, chunk.getPartNo());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        // a peek counts for neither
+        assertTrue(cache.contains(request(0)));
+        assertFalse(cache.contains(request(1)));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void keepsItsOwnCopyOfThePayload() {
+        ChunkCache cache = new ChunkCache(10 * CHUNK, new LruPolicy<>(), true);
+        byte[] bytes = filled(7);
+        cache.put(request(0), new MP3Chunk(SONG, 0, bytes));
+        bytes[0] = 0;
+        assertEquals(7, cache.get(request(0)).getMusicFileExtract()[0]);
+    }
+
+    @Test
+    public void lruEvictsTheLeastRecentlyUsed() {
+        ChunkCache cache = new ChunkCache(3 * CHUNK, new LruPolicy<>(), false);
+        put(cache, 0);
+        put(cache, 1);
+        put(cache, 2);
+        cache.get(request(0));
+        put(cache, 3);
+        assertTrue(cache.contains(request(0)));
+        assertFalse(cache.contains(request(1)));
+        assertTrue(cache.contains(request(2)));
+        assertTrue(cache.contains(request(3)));
+    }
+
+    @Test
+    public void lruLetsAScanFlushAPopularChunk() {
+        ChunkCache cache = new ChunkCache(100 * CHUNK, new LruPolicy<>(), false);
+        assertFalse(popularSurvivesScan(cache));
+    }
+
+    @Test
+    public void tinyLfuKeepsAPopularChunkThroughAScan() {
+        ChunkCache cache = new ChunkCache(100 * CHUNK, new TinyLfuPolicy<>(100 * CHUNK), false);
+        assertTrue(popularSurvivesScan(cache));
+        assertTrue(cache.getUsedBytes() <= cache.getMaxBytes());
+    }
+
+    // part 0 is asked for often, then many parts are asked for once each, the way the broker does: a miss, then a put
+    private static boolean popularSurvivesScan(ChunkCache cache) {
+        cache.get(request(0));
+        put(cache, 0);
+        for (int i = 0; i < 10; i++) {
+            cache.get(request(0));
+        }
+        for (int part = 1; part <= 1000; part++) {
+            if (cache.get(request(part)) == null) put(cache, part);
+        }
+        return cache.contains(request(0));
+    }
+
+    private static void put(ChunkCache cache, int part) {
+        cache.put(request(part), new MP3Chunk(SONG, part, filled(part)));
+    }
+
+    private static ChunkRequest request(int part) {
+        return new ChunkRequest(SONG, part);
+    }
+
+    private static byte[] filled(int value) {
+        byte[] bytes = new byte[CHUNK];
+        Arrays.fill(bytes, (byte) value);
+        return bytes;
+    }
+}
@@ -0,0 +1,86 @@
+package broker;
+
+import org.junit.Test;
+import shared.NodeInfo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HashRingTest {
+
+    private static final int KEYS = 20_000;
+
+    @Test
+    public void emptyRingOwnsNothing() {
+        assertNull(new HashRing(Collections.emptyList(), HashRing.DEFAULT_VIRTUAL_NODES).nodeFor("Artist"));
+    }
+
+    @Test
+    public void spreadsKeysEvenly() {
+        List<NodeInfo> nodes = brokers(4);
+        HashRing ring = new HashRing(nodes, HashRing.DEFAULT_VIRTUAL_NODES);
+        assertEquals(4 * HashRing.DEFAULT_VIRTUAL_NODES, ring.size());
+
+        Map<NodeInfo, Integer> owned = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            owned.merge(ring.nodeFor("Artist " + i), 1, Integer::sum);
+        }
+        assertEquals(nodes.size(), owned.size());
+        for (Map.Entry<NodeInfo, Integer> entry : owned.entrySet()) {
+            // a quarter each, give or take 20%
+            double share = entry.getValue() / (double) KEYS;
+            assertTrue(entry.getKey() + " owns " + share, share > 0.2 && share < 0.3);
+        }
+    }
+
+    @Test
+    public void addingANodeOnlyMovesKeysToIt() {
+        List<NodeInfo> nodes = brokers(4);
+        HashRing before = new HashRing(nodes, HashRing.DEFAULT_VIRTUAL_NODES);
+        NodeInfo added = new NodeInfo("localhost", 6004, 4);
+        List<NodeInfo> grown = new ArrayList<>(nodes);
+        grown.add(added);
+        HashRing after = new HashRing(grown, HashRing.DEFAULT_VIRTUAL_NODES);
+
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            String key = "Artist " + i;
+            NodeInfo owner = after.nodeFor(key);
+            if (!owner.equals(before.nodeFor(key))) {
+                assertEquals(key + " moved between old nodes", added, owner);
+                moved++;
+            }
+        }
+        // about a fifth of the keys
+        double share = moved / (double) KEYS;
+        assertTrue("moved " + share, share > 0.15 && share < 0.25);
+    }
+
+    @Test
+    public void placementDoesNotDependOnNodeOrder() {
+        List<NodeInfo> nodes = brokers(3);
+        List<NodeInfo> reversed = new ArrayList<>(nodes);
+        Collections.reverse(reversed);
+        HashRing ring = new HashRing(nodes, 64);
+        HashRing other = new HashRing(reversed, 64);
+        for (String key : Arrays.asList("Artist 1", "Artist 2", "Ärtist", "")) {
+            assertEquals(ring.nodeFor(key), other.nodeFor(key));
+        }
+    }
+
+    private static List<NodeInfo> brokers(int count) {
+        List<NodeInfo> nodes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            nodes.add(new NodeInfo("localhost", 6000 + i, i));
+        }
+        return nodes;
+    }
+}
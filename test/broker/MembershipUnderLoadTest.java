@@ -0,0 +1,158 @@
+package broker;
+
+import consumer.ChunkDownloader;
+import consumer.Consumer;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import publisher.Publisher;
+import shared.NodeInfo;
+import shared.RoutingTable;
+import shared.SongInfo;
+import util.ServerMode;
+import util.SyntheticLibrary;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A publisher with a single worker streams songs to several consumers at once, without a broker cache to
+ * take the load off it, while the broker keeps pinging it. However busy it is, it must never be taken for down.
+ */
+public class MembershipUnderLoadTest {
+
+    private static final int ARTISTS = 2;
+    private static final int SONGS_PER_ARTIST = 2;
+    private static final int FILE_SIZE = 8 * 1024 * 1024;
+    private static final int CONSUMERS = 6;
+    private static final long STREAM_MILLIS = 3000;
+
+    private static Path workDirectory;
+
+    @BeforeClass
+    public static void createLibrary() throws IOException {
+        workDirectory = Files.createTempDirectory("membership-under-load");
+        SyntheticLibrary.generate(workDirectory.resolve("data"), ARTISTS, SONGS_PER_ARTIST, FILE_SIZE);
+        // every chunk has to come from the publisher
+        System.setProperty("broker.cache.bytes", "0");
+        System.setProperty("broker.cache.policy", "lru");
+    }
+
+    @AfterClass
+    public static void deleteLibrary() throws IOException {
+        System.clearProperty("broker.cache.bytes");
+        System.clearProperty("broker.cache.policy");
+        System.clearProperty("server.transport");
+        try (Stream<Path> paths = Files.walk(workDirectory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void publisherStaysUpWhileStreamingOverBlockingTransport() throws Exception {
+        streamWhilePinged("blocking");
+    }
+
+    @Test
+    public void publisherStaysUpWhileStreamingOverEventLoopTransport() throws Exception {
+        streamWhilePinged("eventloop");
+    }
+
+    private void streamWhilePinged(String transport) throws Exception {
+        // read when the servers are created
+        System.setProperty("server.transport", transport);
+        ServerSocket brokerSocket = bind();
+        ServerSocket publisherSocket = bind();
+        List<NodeInfo> brokers = Collections.singletonList(new NodeInfo("localhost", brokerSocket.getLocalPort(), 0));
+        NodeInfo publisherNode = new NodeInfo("localhost", publisherSocket.getLocalPort(), 0);
+
+        Broker broker = new Broker(0, brokers);
+        broker.setServerMode(ServerMode.POOLED, 16);
+        startDaemon(() -> broker.startServer(brokerSocket));
+        Publisher publisher = new Publisher(0, Collections.singletonList(publisherNode), brokers.get(0));
+        publisher.setServerMode(ServerMode.SERIAL, 1);
+        publisher.setLibrary(workDirectory.resolve("data"), workDirectory.resolve("catalog.manifest"));
+        publisher.init();
+        startDaemon(() -> publisher.startServer(publisherSocket));
+        publisher.connectToBroker();
+
+        // judged only once it has answered, see Membership
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!broker.getMembership().getMembers().contains(publisherNode) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue("the broker never started watching the publisher", broker.getMembership().getMembers().contains(publisherNode));
+        Thread.sleep(500);
+
+        AtomicLong bytes = new AtomicLong();
+        ExecutorService consumers = Executors.newFixedThreadPool(CONSUMERS);
+        long until = System.currentTimeMillis() + STREAM_MILLIS;
+        for (int i = 0; i < CONSUMERS; i++) {
+            int first = i;
+            consumers.execute(() -> stream(brokers.get(0), first, until, bytes));
+        }
+        double maxPhi = 0;
+        while (System.currentTimeMillis() < until) {
+            assertTrue("publisher taken for down while streaming, " + broker.getMembership(),
+                    broker.getMembership().isAvailable(publisherNode));
+            maxPhi = Math.max(maxPhi, broker.getMembership().phi(publisherNode));
+            Thread.sleep(10);
+        }
+        consumers.shutdown();
+        assertTrue(consumers.awaitTermination(30, TimeUnit.SECONDS));
+
+        assertTrue("nothing was streamed", bytes.get() >= FILE_SIZE);
+        assertEquals("failures detected, max phi " + maxPhi, 0, broker.getMetrics().counter("membership.failed").sum());
+    }
+
+    // downloads the songs one after the other until the time is up
+    private static void stream(NodeInfo broker, int first, long until, AtomicLong bytes) {
+        Consumer consumer = new Consumer(broker);
+        if (!consumer.registerToBroker()) return;
+        List<SongInfo> songs = new ArrayList<>();
+        for (int artist = 0; artist < ARTISTS; artist++) {
+            RoutingTable.Route route = consumer.findCorrectBrokerByArtistName("Artist " + artist);
+            if (route == null) continue;
+            List<SongInfo> songInfos = consumer.requestArtist(route.getNode(), route.getArtistName());
+            if (songInfos != null) songs.addAll(songInfos);
+        }
+        for (int next = first; !songs.isEmpty() && System.currentTimeMillis() < until; next++) {
+            try {
+                ChunkDownloader.Stats stats = consumer.download(broker, songs.get(next % songs.size()), chunk -> { });
+                bytes.addAndGet(stats.getBytes());
+            } catch (IOException e) {
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static ServerSocket bind() throws IOException {
+        // opened through a channel so that either transport can serve it
+        return ServerSocketChannel.open().bind(new InetSocketAddress(0), 1024).socket();
+    }
+
+    private static void startDaemon(Runnable runnable) {
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,152 @@
+package broker;
+
+import org.junit.Test;
+import shared.ArtistName;
+import shared.NodeInfo;
+import shared.PublisherReport;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PublisherBalancerTest {
+
+    private static final NodeInfo PUB1 = new NodeInfo("localhost", 5001, 1);
+    private static final NodeInfo PUB2 = new NodeInfo("localhost", 5002, 2);
+    private static final long MB = 1 << 20;
+
+    @Test
+    public void firstPublisherServesEverythingItHas() {
+        PublisherBalancer balancer = new PublisherBalancer(2);
+        Map<NodeInfo, List<ArtistName>> nodeData = balancer.report(report(PUB1, catalog(10, MB), noLoad()));
+        assertEquals(10, nodeData.get(PUB1).size());
+    }
+
+    @Test
+    public void joiningPublisherTakesOverAFewArtistsPerReport() {
+        PublisherBalancer balancer = new PublisherBalancer(2);
+        Map<ArtistName, Long> catalog = catalog(10, MB);
+        balancer.report(report(PUB1, catalog, noLoad()));
+
+        Map<NodeInfo, List<ArtistName>> nodeData = balancer.report(report(PUB2, catalog, noLoad()));
+        assertEquals(2, nodeData.get(PUB2).size());
+        assertEquals(8, nodeData.get(PUB1).size());
+
+        for (int i = 0; i < 5; i++) {
+            nodeData = balancer.report(report(i % 2 == 0 ? PUB1 : PUB2, catalog, noLoad()));
+        }
+        assertEquals(5, nodeData.get(PUB1).size());
+        assertEquals(5, nodeData.get(PUB2).size());
+        assertBalanced(balancer);
+    }
+
+    @Test
+    public void artistsStayWithTheOnlyPublisherThatHasThem() {
+        PublisherBalancer balancer = new PublisherBalancer(10);
+        balancer.report(report(PUB1, catalog(10, MB), noLoad()));
+        Map<NodeInfo, List<ArtistName>> nodeData = balancer.report(report(PUB2, Collections.singletonMap(artist("Other"), MB), noLoad()));
+        assertEquals(10, nodeData.get(PUB1).size());
+        assertEquals(Collections.singletonList(artist("Other")), nodeData.get(PUB2));
+    }
+
+    @Test
+    public void servedLoadMovesArtistsAway() {
+        PublisherBalancer balancer = new PublisherBalancer(10);
+        Map<ArtistName, Long> catalog = catalog(4, MB);
+        balancer.report(report(PUB1, catalog, noLoad()));
+        Map<NodeInfo, List<ArtistName>> nodeData = balancer.report(report(PUB2, catalog, noLoad()));
+        assertEquals(2, nodeData.get(PUB1).size());
+
+        // one of PUB1's artists is suddenly much in demand
+        ArtistName hot = nodeData.get(PUB1).get(0);
+        nodeData = balancer.report(report(PUB1, catalog, Collections.singletonMap(hot, 10 * MB)));
+        List<ArtistName> hotPublisher = nodeData.get(PUB1).contains(hot) ? nodeData.get(PUB1) : nodeData.get(PUB2);
+        assertEquals("the hot artist is left alone on its publisher", Collections.singletonList(hot), hotPublisher);
+    }
+
+    @Test
+    public void downPublisherHandsItsArtistsOverUntilItIsBack() {
+        PublisherBalancer balancer = new PublisherBalancer(10);
+        Map<ArtistName, Long> both = catalog(4, MB);
+        Map<ArtistName, Long> withExclusive = new LinkedHashMap<>(both);
+        withExclusive.put(artist("Exclusive"), MB);
+        balancer.report(report(PUB1, withExclusive, noLoad()));
+        balancer.report(report(PUB2, both, noLoad()));
+
+        Map<NodeInfo, List<ArtistName>> nodeData = balancer.setAvailable(PUB1, false);
+        assertFalse(nodeData.containsKey(PUB1));
+        assertEquals(new HashSet<>(both.keySet()), new HashSet<>(nodeData.get(PUB2)));
+        assertNull("already down", balancer.setAvailable(PUB1, false));
+
+        nodeData = balancer.setAvailable(PUB1, true);
+        assertTrue(nodeData.get(PUB1).contains(artist("Exclusive")));
+        assertEquals(5, nodeData.get(PUB1).size() + nodeData.get(PUB2).size());
+        assertBalanced(balancer);
+    }
+
+    @Test
+    public void unknownPublisherChangesNothing() {
+        PublisherBalancer balancer = new PublisherBalancer(10);
+        assertNull(balancer.setAvailable(PUB1, false));
+    }
+
+    @Test
+    public void equalReportsLeadToTheSameAssignment() {
+        Map<ArtistName, Long> catalog = catalog(20, MB);
+        Map<NodeInfo, List<ArtistName>> first = null;
+        for (int run = 0; run < 2; run++) {
+            PublisherBalancer balancer = new PublisherBalancer(3);
+            balancer.report(report(PUB1, catalog, noLoad()));
+            Map<NodeInfo, List<ArtistName>> nodeData = balancer.report(report(PUB2, catalog, noLoad()));
+            if (first == null) {
+                first = nodeData;
+            } else {
+                assertEquals(assignment(first), assignment(nodeData));
+            }
+        }
+    }
+
+    private static void assertBalanced(PublisherBalancer balancer) {
+        Map<NodeInfo, Double> weights = balancer.getWeights();
+        double mean = weights.values().stream().mapToDouble(Double::doubleValue).average().orElse(0);
+        double max = Collections.max(weights.values());
+        double min = Collections.min(weights.values());
+        assertTrue(weights.toString(), max - min <= PublisherBalancer.TOLERANCE * mean + MB);
+    }
+
+    private static Map<NodeInfo, Set<ArtistName>> assignment(Map<NodeInfo, List<ArtistName>> nodeData) {
+        Map<NodeInfo, Set<ArtistName>> assignment = new LinkedHashMap<>();
+        nodeData.forEach((node, artists) -> assignment.put(node, new HashSet<>(artists)));
+        return assignment;
+    }
+
+    private static PublisherReport report(NodeInfo publisher, Map<ArtistName, Long> catalog, Map<ArtistName, Long> served) {
+        return new PublisherReport(publisher, catalog, served);
+    }
+
+    private static Map<ArtistName, Long> catalog(int artists, long bytes) {
+        Map<ArtistName, Long> catalog = new LinkedHashMap<>();
+        for (int i = 0; i < artists; i++) {
+            catalog.put(artist("Artist " + i), bytes);
+        }
+        return catalog;
+    }
+
+    private static Map<ArtistName, Long> noLoad() {
+        return Collections.emptyMap();
+    }
+
+    private static ArtistName artist(String name) {
+        ArtistName artistName = new ArtistName();
+        artistName.setArtistName(name);
+        return artistName;
+    }
+}
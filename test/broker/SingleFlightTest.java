@@ -0,0 +1,136 @@
+package broker;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SingleFlightTest {
+
+    @Test
+    public void identicalRequestsShareOneFetch() throws Exception {
+        SingleFlight<String> flights = new SingleFlight<>();
+        CompletableFuture<Object> upstream = new CompletableFuture<>();
+        AtomicInteger started = new AtomicInteger();
+
+        CompletableFuture<Object> first = flights.fetch("a", () -> {
+            started.incrementAndGet();
+            return upstream;
+        });
+        CompletableFuture<Object> second = flights.fetch("a", () -> {
+            started.incrementAndGet();
+            return new CompletableFuture<>();
+        });
+        assertSame(first, second);
+        assertEquals(1, started.get());
+        assertEquals(1, flights.getFetches());
+        assertEquals(1, flights.getJoined());
+        assertEquals(1, flights.getInFlight());
+
+        upstream.complete("chunk");
+        assertEquals("chunk", first.get());
+        assertEquals("chunk", second.get());
+        assertEquals(0, flights.getInFlight());
+    }
+
+    @Test
+    public void differentKeysFetchSeparately() {
+        SingleFlight<String> flights = new SingleFlight<>();
+        CompletableFuture<Object> a = flights.fetch("a", CompletableFuture::new);
+        CompletableFuture<Object> b = flights.fetch("b", CompletableFuture::new);
+        assertNotSame(a, b);
+        assertEquals(2, flights.getFetches());
+        assertEquals(0, flights.getJoined());
+    }
+
+    @Test
+    public void fetchesAgainOnceTheLastOneCompleted() throws Exception {
+        SingleFlight<String> flights = new SingleFlight<>();
+        assertEquals(1, flights.fetch("a", () -> CompletableFuture.completedFuture(1)).get());
+        assertEquals(2, flights.fetch("a", () -> CompletableFuture.completedFuture(2)).get());
+        assertEquals(2, flights.getFetches());
+    }
+
+    @Test
+    public void failuresReachEveryWaiterAndAreNotKept() throws Exception {
+        SingleFlight<String> flights = new SingleFlight<>();
+        CompletableFuture<Object> upstream = new CompletableFuture<>();
+        CompletableFuture<Object> first = flights.fetch("a", () -> upstream);
+        CompletableFuture<Object> second = flights.fetch("a", CompletableFuture::new);
+        upstream.completeExceptionally(new IOException("publisher down"));
+        assertFailedWith(first, IOException.class);
+        assertFailedWith(second, IOException.class);
+        assertEquals(0, flights.getInFlight());
+        assertEquals("retried", flights.fetch("a", () -> CompletableFuture.completedFuture("retried")).get());
+    }
+
+    @Test
+    public void aFetchThatThrowsDoesNotStrandTheKey() throws Exception {
+        SingleFlight<String> flights = new SingleFlight<>();
+        CompletableFuture<Object> failed = flights.fetch("a", () -> {
+            throw new IllegalStateException("no connection");
+        });
+        assertFailedWith(failed, IllegalStateException.class);
+        assertEquals(0, flights.getInFlight());
+        assertEquals(1, flights.fetch("a", () -> CompletableFuture.completedFuture(1)).get());
+    }
+
+    @Test
+    public void concurrentBurstReachesUpstreamOnce() throws Exception {
+        SingleFlight<Integer> flights = new SingleFlight<>();
+        CompletableFuture<Object> upstream = new CompletableFuture<>();
+        AtomicInteger started = new AtomicInteger();
+        int threads = 16;
+        CountDownLatch ready = new CountDownLatch(threads);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<CompletableFuture<Object>>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                results.add(executor.submit(() -> {
+                    ready.countDown();
+                    ready.await();
+                    return flights.fetch(7, () -> {
+                        started.incrementAndGet();
+                        return upstream;
+                    });
+                }));
+            }
+            List<CompletableFuture<Object>> waiters = new ArrayList<>();
+            for (Future<CompletableFuture<Object>> result : results) {
+                waiters.add(result.get(10, TimeUnit.SECONDS));
+            }
+            upstream.complete("chunk");
+            for (CompletableFuture<Object> waiter : waiters) {
+                assertEquals("chunk", waiter.get(10, TimeUnit.SECONDS));
+            }
+            assertEquals(1, started.get());
+            assertEquals(threads - 1, flights.getJoined());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void assertFailedWith(CompletableFuture<Object> future, Class<? extends Throwable> type) throws InterruptedException {
+        try {
+            future.get();
+            fail("completed normally");
+        } catch (ExecutionException e) {
+            assertTrue(String.valueOf(e.getCause()), type.isInstance(e.getCause()));
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package consumer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import shared.ChunkSizing;
+import shared.MP3Chunk;
+import shared.SongInfo;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkStoreTest {
+
+    private static final int CHUNK = ChunkSizing.MIN_CHUNK_SIZE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void keepsTrackOfThePartsItHas() throws IOException {
+        ChunkStore store = new ChunkStore(folder.getRoot().toPath(), 1 << 30);
+        SongInfo song = song("A", 4 * CHUNK);
+        store.put(chunk(song, 0));
+        store.put(chunk(song, 2));
+
+        assertTrue(store.contains(song, 0));
+        assertFalse(store.contains(song, 1));
+        assertTrue(store.contains(song, 2));
+        assertFalse(store.contains(song, 4));
+        assertNull(store.get(song, 1));
+        assertArrayEquals(bytes(song, 2), store.get(song, 2).getMusicFileExtract());
+        assertEquals(2L * CHUNK, store.getUsedBytes());
+    }
+
+    @Test
+    public void servesPartsOfAnotherChunkSize() throws IOException {
+        ChunkStore store = new ChunkStore(folder.getRoot().toPath(), 1 << 30);
+        SongInfo song = song("A", 4 * CHUNK);
+        for (int part = 0; part < 3; part++) {
+            store.put(chunk(song, part));
+        }
+        SongInfo twice = song.withChunkSize(2 * CHUNK);
+        assertTrue(store.contains(twice, 0));
+        assertFalse(store.contains(twice, 1));
+        byte[] expected = new byte[2 * CHUNK];
+        System.arraycopy(bytes(song, 0), 0, expected, 0, CHUNK);
+        System.arraycopy(bytes(song, 1), 0, expected, CHUNK, CHUNK);
+        assertArrayEquals(expected, store.get(twice, 0).getMusicFileExtract());
+    }
+
+    @Test
+    public void storesAShortLastPartAndRefusesAWrongLength() throws IOException {
+        ChunkStore store = new ChunkStore(folder.getRoot().toPath(), 1 << 30);
+        SongInfo song = song("A", CHUNK + 1000);
+        store.put(new MP3Chunk(song, 1, new byte[CHUNK]));
+        assertFalse(store.contains(song, 1));
+        store.put(chunk(song, 1));
+        assertTrue(store.contains(song, 1));
+        assertArrayEquals(bytes(song, 1), store.get(song, 1).getMusicFileExtract());
+    }
+
+    @Test
+    public void resumesFromWhatIsOnDisk() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        SongInfo song = song("A", 4 * CHUNK);
+        ChunkStore store = new ChunkStore(directory, 1 << 30);
+        store.put(chunk(song, 0));
+        store.put(chunk(song, 1));
+        store.put(chunk(song, 3));
+
+        ChunkStore reopened = new ChunkStore(directory, 1 << 30);
+        assertEquals(1, reopened.getSongs());
+        assertEquals(store.getUsedBytes(), reopened.getUsedBytes());
+        assertTrue(reopened.contains(song, 1));
+        assertFalse("the first part to download", reopened.contains(song, 2));
+        assertTrue(reopened.contains(song, 3));
+        assertArrayEquals(bytes(song, 3), reopened.get(song, 3).getMusicFileExtract());
+    }
+
+    @Test
+    public void evictsTheSongUsedLeastRecently() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        ChunkStore store = new ChunkStore(directory, 4L * CHUNK);
+        SongInfo a = song("A", 2 * CHUNK);
+        SongInfo b = song("B", 2 * CHUNK);
+        SongInfo c = song("C", 2 * CHUNK);
+        putWhole(store, a);
+        putWhole(store, b);
+        store.get(a, 0);
+        putWhole(store, c);
+
+        assertEquals(2, store.getSongs());
+        assertTrue(store.contains(a, 1));
+        assertFalse(store.contains(b, 0));
+        assertTrue(store.contains(c, 1));
+        assertTrue(store.getUsedBytes() <= 4L * CHUNK);
+        assertFalse(Files.exists(directory.resolve(ChunkStore.idOf(b) + ".song")));
+        assertFalse(Files.exists(directory.resolve(ChunkStore.idOf(b) + ".blocks")));
+    }
+
+    @Test
+    public void skipsSongsLargerThanTheBudget() throws IOException {
+        ChunkStore store = new ChunkStore(folder.getRoot().toPath(), CHUNK);
+        SongInfo song = song("A", 2 * CHUNK);
+        store.put(chunk(song, 0));
+        assertFalse(store.contains(song, 0));
+        assertEquals(0, store.getSongs());
+    }
+
+    private static void putWhole(ChunkStore store, SongInfo song) {
+        for (int part = 0; part < song.getPartsTotal(); part++) {
+            store.put(chunk(song, part));
+        }
+    }
+
+    private static SongInfo song(String title, long fileSize) {
+        return new SongInfo(title, "Artist", "Album", "Genre", title + ".mp3", fileSize, CHUNK);
+    }
+
+    private static MP3Chunk chunk(SongInfo song, int part) {
+        return new MP3Chunk(song, part, bytes(song, part));
+    }
+
+    // every part of every song filled with something of its own
+    private static byte[] bytes(SongInfo song, int part) {
+        long from = ChunkSizing.offsetOf(part, song.getChunkSize());
+        byte[] bytes = new byte[(int) Math.min(song.getChunkSize(), song.getFileSize() - from)];
+        Arrays.fill(bytes, (byte) (song.getSongId() + part));
+        return bytes;
+    }
+}
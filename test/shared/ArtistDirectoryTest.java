@@ -0,0 +1,137 @@
+package shared;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ArtistDirectoryTest {
+
+    private static final NodeInfo PUB1 = new NodeInfo("localhost", 5001, 1);
+    private static final NodeInfo PUB2 = new NodeInfo("localhost", 5002, 2);
+
+    @Test
+    public void registerReportsOnlyWhatChanged() {
+        ArtistDirectory coordinator = new ArtistDirectory(100);
+        MetadataDelta first = coordinator.register(nodes(PUB1, "A", "B"));
+        assertEquals(0, first.getFromVersion());
+        assertEquals(1, first.getToVersion());
+
+        assertNull(coordinator.register(nodes(PUB1, "A", "B")));
+        assertEquals(1, coordinator.getVersion());
+
+        Map<NodeInfo, List<ArtistName>> moved = nodes(PUB1, "A");
+        moved.putAll(nodes(PUB2, "C"));
+        MetadataDelta second = coordinator.register(moved);
+        assertEquals(1, second.getFromVersion());
+        assertEquals(2, second.getToVersion());
+        assertEquals(nodes(PUB2, "C"), second.getAdded());
+        assertEquals(Arrays.asList("B"), second.getRemoved());
+    }
+
+    @Test
+    public void replicaFollowsDeltas() {
+        ArtistDirectory coordinator = new ArtistDirectory(100);
+        ArtistDirectory replica = new ArtistDirectory();
+        assertTrue(replica.apply(coordinator.register(nodes(PUB1, "A", "B"))));
+        assertTrue(replica.apply(coordinator.register(nodes(PUB2, "A", "C"))));
+        assertEquals(coordinator.toNodeMap(), replica.toNodeMap());
+        assertEquals(100, replica.getEpoch());
+        assertEquals(2, replica.getVersion());
+    }
+
+    @Test
+    public void redeliveredDeltaIsHarmless() {
+        ArtistDirectory coordinator = new ArtistDirectory(100);
+        ArtistDirectory replica = new ArtistDirectory();
+        MetadataDelta first = coordinator.register(nodes(PUB1, "A"));
+        assertTrue(replica.apply(first));
+        assertTrue(replica.apply(coordinator.register(nodes(PUB2, "B"))));
+        // an old delta arriving late must not bring A back
+        assertTrue(replica.apply(first));
+        assertEquals(nodes(PUB2, "B"), replica.toNodeMap());
+        assertEquals(2, replica.getVersion());
+    }
+
+    @Test
+    public void deltaWithAGapIsRefusedUntilPulled() {
+        ArtistDirectory coordinator = new ArtistDirectory(100);
+        ArtistDirectory replica = new ArtistDirectory();
+        assertTrue(replica.apply(coordinator.register(nodes(PUB1, "A"))));
+        coordinator.register(nodes(PUB1, "A", "B"));
+        MetadataDelta third = coordinator.register(nodes(PUB1, "B", "C"));
+
+        assertFalse(replica.apply(third));
+        assertEquals(1, replica.getVersion());
+
+        MetadataDelta missing = coordinator.since(replica.getEpoch(), replica.getVersion());
+        assertEquals(1, missing.getFromVersion());
+        assertEquals(3, missing.getToVersion());
+        assertTrue(replica.apply(missing));
+        assertEquals(coordinator.toNodeMap(), replica.toNodeMap());
+        assertTrue(replica.apply(third));
+        assertEquals(3, replica.getVersion());
+    }
+
+    @Test
+    public void sinceTheCurrentVersionIsEmpty() {
+        ArtistDirectory coordinator = new ArtistDirectory(100);
+        coordinator.register(nodes(PUB1, "A"));
+        MetadataDelta delta = coordinator.since(100, 1);
+        assertTrue(delta.getAdded().isEmpty());
+        assertTrue(delta.getRemoved().isEmpty());
+        assertEquals(1, delta.getToVersion());
+    }
+
+    @Test
+    public void newEpochStartsOverFromASnapshot() {
+        ArtistDirectory coordinator = new ArtistDirectory(100);
+        ArtistDirectory replica = new ArtistDirectory();
+        replica.apply(coordinator.register(nodes(PUB1, "A", "B")));
+        replica.apply(coordinator.register(nodes(PUB1, "A", "B", "C")));
+
+        // the coordinator restarted and only knows B so far, at a version below the replica's
+        ArtistDirectory restarted = new ArtistDirectory(200);
+        MetadataDelta change = restarted.register(nodes(PUB2, "B"));
+        assertTrue(change.isSnapshot());
+        assertTrue(replica.apply(change));
+        assertEquals(200, replica.getEpoch());
+        assertEquals(1, replica.getVersion());
+        assertEquals(nodes(PUB2, "B"), replica.toNodeMap());
+
+        // and an increment of the new epoch is refused by a replica still on the old one
+        ArtistDirectory stale = new ArtistDirectory();
+        stale.apply(coordinator.since(0, 0));
+        MetadataDelta increment = restarted.register(nodes(PUB2, "B", "D"));
+        assertFalse(stale.apply(increment));
+        assertTrue(stale.apply(restarted.since(stale.getEpoch(), stale.getVersion())));
+        assertEquals(restarted.toNodeMap(), stale.toNodeMap());
+    }
+
+    @Test
+    public void snapshotOfAnOlderEpochIsRefused() {
+        ArtistDirectory replica = new ArtistDirectory();
+        replica.apply(new ArtistDirectory(200).register(nodes(PUB2, "B")));
+        assertFalse(replica.apply(new ArtistDirectory(100).register(nodes(PUB1, "A"))));
+        assertEquals(200, replica.getEpoch());
+        assertEquals(nodes(PUB2, "B"), replica.toNodeMap());
+    }
+
+    private static Map<NodeInfo, List<ArtistName>> nodes(NodeInfo node, String... artists) {
+        Map<NodeInfo, List<ArtistName>> nodeData = new HashMap<>();
+        for (String artist : artists) {
+            ArtistName artistName = new ArtistName();
+            artistName.setArtistName(artist);
+            nodeData.computeIfAbsent(node, k -> new ArrayList<>()).add(artistName);
+        }
+        return nodeData;
+    }
+}
@@ -0,0 +1,149 @@
+package util;
+
+import org.junit.Test;
+import shared.ArtistName;
+import shared.ChunkRangeRequest;
+import shared.ChunkRequest;
+import shared.Heartbeat;
+import shared.MP3Chunk;
+import shared.NodeInfo;
+import shared.SongInfo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BinaryCodecTest {
+
+    private static final SongInfo SONG = new SongInfo("Title", "Artist", "Album", "Genre", "data/song.mp3", 1_000_000, 4096);
+
+    @Test
+    public void roundTripsScalars() throws IOException {
+        assertNull(roundTrip(null));
+        assertEquals("héllo", roundTrip("héllo"));
+        assertEquals(42, roundTrip(42));
+        assertEquals(Object.class, roundTrip(new Object()).getClass());
+    }
+
+    @Test
+    public void roundTripsSongInfoWithAllItsFields() throws IOException {
+        SongInfo decoded = (SongInfo) roundTrip(SONG);
+        assertEquals(SONG.getSongId(), decoded.getSongId());
+        assertEquals("Title", decoded.getSongTitle());
+        assertEquals("Artist", decoded.getArtistName());
+        assertEquals("Album", decoded.getAlbumDetails());
+        assertEquals("Genre", decoded.getGenre());
+        assertEquals("data/song.mp3", decoded.getSongPath());
+        assertEquals(1_000_000, decoded.getFileSize());
+        assertEquals(4096, decoded.getChunkSize());
+    }
+
+    @Test
+    public void chunkRequestsCarryOnlyTheSongReference() throws IOException {
+        ChunkRequest decoded = (ChunkRequest) roundTrip(new ChunkRequest(SONG, 7));
+        assertEquals(7, decoded.getPartNo());
+        assertEquals(SONG, decoded.getSongInfo());
+        assertEquals("Artist", decoded.getSongInfo().getArtistName());
+        assertEquals(SONG.getPartsTotal(), decoded.getSongInfo().getPartsTotal());
+        assertNull(decoded.getSongInfo().getSongPath());
+
+        ChunkRangeRequest range = (ChunkRangeRequest) roundTrip(new ChunkRangeRequest(SONG, 3, 9));
+        assertEquals(SONG, range.getSongInfo());
+        assertEquals(3, range.getFromPart());
+        assertEquals(9, range.getToPart());
+    }
+
+    @Test
+    public void roundTripsChunkPayload() throws IOException {
+        byte[] bytes = new byte[4096];
+        for (int i = 0; i < bytes.length; i++) bytes[i] = (byte) i;
+        MP3Chunk decoded = (MP3Chunk) roundTrip(new MP3Chunk(SONG, 5, bytes));
+        assertEquals(SONG, decoded.getSongInfo());
+        assertEquals(4096, decoded.getSongInfo().getChunkSize());
+        assertEquals(5, decoded.getPartNo());
+        assertArrayEquals(bytes, decoded.getMusicFileExtract());
+    }
+
+    @Test
+    public void chunkPayloadIsEncodedAsItsOwnBuffer() throws IOException {
+        ByteBuffer payload = ByteBuffer.allocateDirect(1024);
+        ByteBuffer[] buffers = BinaryCodec.INSTANCE.encode(new MP3Chunk(SONG, 0, payload));
+        assertTrue(Arrays.stream(buffers).anyMatch(buffer -> buffer.isDirect() && buffer.remaining() == 1024));
+    }
+
+    @Test
+    public void roundTripsNodesListsAndMaps() throws IOException {
+        NodeInfo node = new NodeInfo("localhost", 6000, 1);
+        assertEquals(node, roundTrip(node));
+        assertEquals(node, ((Heartbeat) roundTrip(new Heartbeat(node))).getFrom());
+        assertEquals(Arrays.asList("a", 1, null), roundTrip(Arrays.asList("a", 1, null)));
+
+        Map<NodeInfo, List<ArtistName>> artists = new HashMap<>();
+        artists.put(node, Arrays.asList(artist("A"), artist("B")));
+        artists.put(new NodeInfo("localhost", 5000, 2), Collections.emptyList());
+        assertEquals(artists, roundTrip(artists));
+    }
+
+    @Test
+    public void fallsBackToJavaSerialization() throws IOException {
+        Map<String, Integer> map = new HashMap<>();
+        map.put("key", 1);
+        assertEquals(map, roundTrip(map));
+    }
+
+    @Test
+    public void rejectsUnknownTag() {
+        assertMalformed(new byte[]{99});
+    }
+
+    @Test
+    public void rejectsTruncatedPayload() throws IOException {
+        byte[] whole = encode(SONG);
+        for (int length = 0; length < whole.length; length++) {
+            assertMalformed(Arrays.copyOf(whole, length));
+        }
+    }
+
+    @Test
+    public void rejectsCountsLargerThanThePayload() {
+        assertMalformed(ByteBuffer.allocate(5).put(BinaryCodec.LIST).putInt(Integer.MAX_VALUE).array());
+        assertMalformed(ByteBuffer.allocate(5).put(BinaryCodec.LIST).putInt(-1).array());
+        assertMalformed(ByteBuffer.allocate(21).put(BinaryCodec.MP3_CHUNK).putLong(1).putInt(4096).putInt(0)
+                .putInt(1 << 20).array());
+    }
+
+    private static Object roundTrip(Object message) throws IOException {
+        return BinaryCodec.INSTANCE.decode(ByteBuffer.wrap(encode(message)));
+    }
+
+    private static byte[] encode(Object message) throws IOException {
+        ByteBuffer[] buffers = BinaryCodec.INSTANCE.encode(message);
+        ByteBuffer whole = ByteBuffer.allocate(Arrays.stream(buffers).mapToInt(ByteBuffer::remaining).sum());
+        for (ByteBuffer buffer : buffers) whole.put(buffer.duplicate());
+        return whole.array();
+    }
+
+    private static void assertMalformed(byte[] payload) {
+        try {
+            BinaryCodec.INSTANCE.decode(ByteBuffer.wrap(payload));
+            fail("decoded " + payload.length + " malformed bytes");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static ArtistName artist(String name) {
+        ArtistName artistName = new ArtistName();
+        artistName.setArtistName(name);
+        return artistName;
+    }
+}
@@ -0,0 +1,108 @@
+package util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(99));
+        assertEquals(0, histogram.getMean(), 0);
+        assertEquals(0, histogram.getMax());
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int value = 1; value <= 50; value++) {
+            histogram.record(value);
+        }
+        assertEquals(25, histogram.getPercentile(50));
+        assertEquals(45, histogram.getPercentile(90));
+        assertEquals(50, histogram.getPercentile(100));
+        assertEquals(25.5, histogram.getMean(), 1e-9);
+        assertEquals(50, histogram.getMax());
+    }
+
+    @Test
+    public void percentilesStayWithinTheRelativeError() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Random random = new Random(42);
+        long[] values = new long[100_000];
+        for (int i = 0; i < values.length; i++) {
+            // spread over six orders of magnitude
+            values[i] = (long) Math.pow(10, 6 * random.nextDouble());
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        for (double percentile : new double[]{50, 90, 99, 99.9}) {
+            long exact = values[(int) Math.ceil(values.length * percentile / 100) - 1];
+            long reported = histogram.getPercentile(percentile);
+            assertTrue(percentile + ": " + reported + " below " + exact, reported >= exact);
+            assertTrue(percentile + ": " + reported + " vs " + exact, reported <= exact * 1.035);
+        }
+        assertEquals(values[values.length - 1], histogram.getPercentile(100));
+        assertEquals(values[values.length - 1], histogram.getMax());
+    }
+
+    @Test
+    public void bucketsCoverTheirValues() {
+        Random random = new Random(7);
+        long previousIndex = -1;
+        for (long value = 0; value < 1 << 20; value += 1 + value / 100) {
+            int index = LatencyHistogram.indexOf(value);
+            assertTrue(index >= previousIndex);
+            assertTrue(value + " above its bucket", LatencyHistogram.upperBoundOf(index) >= value);
+            previousIndex = index;
+        }
+        for (int i = 0; i < 10_000; i++) {
+            long value = random.nextLong() >>> random.nextInt(63);
+            int index = LatencyHistogram.indexOf(value);
+            long upper = LatencyHistogram.upperBoundOf(index);
+            assertTrue(value + " above its bucket", upper >= value);
+            assertTrue(value + " in a bucket up to " + upper, value < 64 || upper - value <= value / 32 + 1);
+        }
+    }
+
+    @Test
+    public void recordsExtremesAndResets() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(0, histogram.getPercentile(50));
+        assertEquals(Long.MAX_VALUE, histogram.getPercentile(100));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        histogram.record(3);
+        assertEquals(3, histogram.getPercentile(99));
+    }
+
+    @Test
+    public void concurrentRecordsAreAllCounted() throws InterruptedException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int thread = 0; thread < 8; thread++) {
+            executor.execute(() -> {
+                for (int i = 0; i < 100_000; i++) {
+                    histogram.record(i % 1000);
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+        assertEquals(800_000, histogram.getCount());
+        assertEquals(999, histogram.getMax());
+    }
+}
@@ -0,0 +1,130 @@
+package util;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RetryPolicyTest {
+
+    @Test
+    public void retriesUntilTheCallSucceeds() throws Exception {
+        RetryPolicy policy = new RetryPolicy(5, 1, 10, 1000, 10_000);
+        AtomicInteger attempts = new AtomicInteger();
+        CompletableFuture<String> result = policy.call(() -> {
+            if (attempts.incrementAndGet() < 3) return failed(new IOException("refused"));
+            return CompletableFuture.completedFuture("ok");
+        }, response -> true, "test");
+        assertEquals("ok", result.get(5, TimeUnit.SECONDS));
+        assertEquals(3, attempts.get());
+    }
+
+    @Test
+    public void retriesAnswersThatAreNotAccepted() throws Exception {
+        RetryPolicy policy = new RetryPolicy(5, 1, 10, 1000, 10_000);
+        AtomicInteger attempts = new AtomicInteger();
+        CompletableFuture<Integer> result = policy.call(() -> CompletableFuture.completedFuture(attempts.incrementAndGet()),
+                response -> response == 2, "test");
+        assertEquals(2, (int) result.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() throws Exception {
+        RetryPolicy policy = new RetryPolicy(3, 1, 10, 1000, 10_000);
+        AtomicInteger attempts = new AtomicInteger();
+        CompletableFuture<String> result = policy.call(() -> {
+            attempts.incrementAndGet();
+            return failed(new IOException("refused"));
+        }, response -> true, "test");
+        assertFailsWithIOException(result);
+        Thread.sleep(100);
+        assertEquals(3, attempts.get());
+    }
+
+    @Test
+    public void givesUpAtTheDeadline() throws Exception {
+        // attempts that never answer, far more of them allowed than fit in the deadline
+        RetryPolicy policy = new RetryPolicy(1000, 1, 10, 100, 500);
+        AtomicInteger attempts = new AtomicInteger();
+        long start = System.nanoTime();
+        CompletableFuture<String> result = policy.call(() -> {
+            attempts.incrementAndGet();
+            return new CompletableFuture<>();
+        }, response -> true, "test");
+        assertFailsWithIOException(result);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("gave up after " + elapsed + " ms", elapsed >= 400 && elapsed < 2000);
+        assertTrue(attempts.get() + " attempts", attempts.get() >= 2 && attempts.get() <= 6);
+    }
+
+    @Test
+    public void timedOutAttemptsCancelTheirRequest() throws Exception {
+        RetryPolicy policy = new RetryPolicy(2, 1, 10, 50, 10_000);
+        List<CompletableFuture<String>> requests = new CopyOnWriteArrayList<>();
+        CompletableFuture<String> result = policy.call(() -> {
+            CompletableFuture<String> request = new CompletableFuture<>();
+            requests.add(request);
+            return request;
+        }, response -> true, "test");
+        assertFailsWithIOException(result);
+        assertEquals(2, requests.size());
+        for (CompletableFuture<String> request : requests) {
+            assertTrue(request.isCancelled());
+        }
+    }
+
+    @Test
+    public void cancellingStopsTheRetries() throws Exception {
+        RetryPolicy policy = new RetryPolicy(100, 1, 10, 10_000, 60_000);
+        List<CompletableFuture<String>> requests = new CopyOnWriteArrayList<>();
+        CompletableFuture<String> result = policy.call(() -> {
+            CompletableFuture<String> request = new CompletableFuture<>();
+            requests.add(request);
+            return request;
+        }, response -> true, "test");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (requests.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, requests.size());
+
+        result.cancel(false);
+        assertTrue(requests.get(0).isCancelled());
+        Thread.sleep(100);
+        assertEquals("no attempt after the cancel", 1, requests.size());
+    }
+
+    @Test
+    public void backoffStaysUnderItsCeiling() {
+        RetryPolicy policy = new RetryPolicy(100, 10, 200, 1000, 10_000);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(policy.backoff(1) <= 10);
+            assertTrue(policy.backoff(3) <= 40);
+            assertTrue(policy.backoff(40) <= 200);
+        }
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable error) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(error);
+        return future;
+    }
+
+    private static void assertFailsWithIOException(CompletableFuture<?> result) throws Exception {
+        try {
+            result.get(10, TimeUnit.SECONDS);
+            fail("completed normally");
+        } catch (ExecutionException e) {
+            assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof IOException);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes MP3 files that jaudiotagger accepts: an ID3v2.3 tag with title, artist, album and genre
+ * followed by silent MPEG-1 Layer III frames. Used to build libraries of any size for benchmarks and
+ * load tests without shipping audio; a test fixture, shared with the benchmarks through the test jar.
+ */
+public class SyntheticLibrary {
+
+    // 128 kbit/s, 44.1 kHz, no padding, no CRC: every frame is 417 bytes
+    private static final int FRAME_HEADER = 0xFFFB9000;
+    private static final int FRAME_LENGTH = 417;
+
+    public static List<Path> generate(Path directory, int artists, int songsPerArtist, int fileSize) throws IOException {
+        Files.createDirectories(directory);
+        List<Path> files = new ArrayList<>();
+        for (int artist = 0; artist < artists; artist++) {
+            for (int song = 0; song < songsPerArtist; song++) {
+                Path file = directory.resolve("artist" + artist + "_song" + song + ".mp3");
+                writeSong(file, "Song " + artist + "-" + song, "Artist " + artist, "Album " + artist, "Synthetic", fileSize);
+                files.add(file);
+            }
+        }
+        return files;
+    }
+
+    public static void writeSong(Path file, String title, String artist, String album, String genre, int fileSize)
+            throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            byte[] tag = id3v2Tag(title, artist, album, genre);
+            out.write(tag);
+            byte[] silence = new byte[FRAME_LENGTH - 4];
+            int written = tag.length;
+            do {
+                out.writeInt(FRAME_HEADER);
+                out.write(silence);
+                written += FRAME_LENGTH;
+            } while (written + FRAME_LENGTH <= fileSize);
+        }
+    }
+
+    private static byte[] id3v2Tag(String title, String artist, String album, String genre) throws IOException {
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        writeTextFrame(frames, "TIT2", title);
+        writeTextFrame(frames, "TPE1", artist);
+        writeTextFrame(frames, "TALB", album);
+        writeTextFrame(frames, "TCON", genre);
+
+        ByteArrayOutputStream tag = new ByteArrayOutputStream();
+        tag.write(new byte[]{'I', 'D', '3', 3, 0, 0});
+        int size = frames.size();
+        // tag size is a 28 bit "syncsafe" integer, 7 bits per byte
+        tag.write(new byte[]{(byte) ((size >> 21) & 0x7f), (byte) ((size >> 14) & 0x7f), (byte) ((size >> 7) & 0x7f), (byte) (size & 0x7f)});
+        frames.writeTo(tag);
+        return tag.toByteArray();
+    }
+
+    private static void writeTextFrame(OutputStream out, String id, String text) throws IOException {
+        byte[] value = text.getBytes(StandardCharsets.ISO_8859_1);
+        DataOutputStream frame = new DataOutputStream(out);
+        frame.write(id.getBytes(StandardCharsets.ISO_8859_1));
+        frame.writeInt(value.length + 1);
+        frame.writeShort(0);
+        frame.writeByte(0);
+        frame.write(value);
+    }
+}